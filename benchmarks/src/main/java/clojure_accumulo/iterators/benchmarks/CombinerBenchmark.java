@@ -0,0 +1,81 @@
+package clojure_accumulo.iterators.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import clojure_accumulo.iterators.ClojureCombiner;
+import clojure_accumulo.iterators.NumberType;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.apache.accumulo.core.iterators.user.SummingCombiner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Sums FIXEDLEN longs over every version of each key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class CombinerBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"1", "10", "1000"})
+    public int versions;
+
+    private SortedMap<Key, Value> map;
+
+    @Setup
+    public void setUp() {
+        map = new TreeMap<Key, Value>();
+        for (int i = 0; i < size; i++) {
+            String row = String.format("r%08d", i / versions);
+            map.put(new Key(row, "f", "q", i % versions), new Value(NumberType.FIXEDLEN.encodeLong(i)));
+        }
+    }
+
+    private void scan(Combiner combiner, Map<String, String> options, Blackhole bh) throws IOException {
+        options.put("all", "true");
+        combiner.init(new SortedMapIterator(map), options, null);
+        SourceData.drain(combiner, bh);
+    }
+
+    @Benchmark
+    public void summingCombiner(Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("type", "FIXEDLEN");
+        scan(new SummingCombiner(), options, bh);
+    }
+
+    @Benchmark
+    public void clojureCombiner(Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("f", "(fn [acc [_ v]] (+ acc (.getLong (java.nio.ByteBuffer/wrap (.get v)))))");
+        options.put("val", "0");
+        options.put("encoding", "raw-long");
+        scan(new ClojureCombiner(), options, bh);
+    }
+
+    @Benchmark
+    public void clojureCombinerNumeric(Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("f", "(fn ^long [^long acc ^long x] (+ acc x))");
+        options.put("numeric", "long");
+        options.put("type", "FIXEDLEN");
+        scan(new ClojureCombiner(), options, bh);
+    }
+}
@@ -0,0 +1,67 @@
+package clojure_accumulo.iterators.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import clojure_accumulo.iterators.ClojureBatchFilter;
+import clojure_accumulo.iterators.ClojureFilter;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.user.RegExFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Scans a whole source through a filter that keeps rows starting with "r0000".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FilterBenchmark {
+
+    private static void scan(SortedKeyValueIterator<Key, Value> filter, SourceData data, Map<String, String> options,
+                             Blackhole bh) throws IOException {
+        filter.init(data.source(), options, null);
+        SourceData.drain(filter, bh);
+    }
+
+    @Benchmark
+    public void source(SourceData data, Blackhole bh) throws IOException {
+        SourceData.drain(data.source(), bh);
+    }
+
+    @Benchmark
+    public void regExFilter(SourceData data, Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(RegExFilter.ROW_REGEX, "r0000.*");
+        scan(new RegExFilter(), data, options, bh);
+    }
+
+    @Benchmark
+    public void clojureFilter(SourceData data, Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("pred", "(fn [[k v]] (.startsWith (str (.getRow k)) \"r0000\"))");
+        scan(new ClojureFilter(), data, options, bh);
+    }
+
+    @Benchmark
+    public void clojureFilterView(SourceData data, Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("pred", "(fn [e] (.startsWith (str (:row e)) \"r0000\"))");
+        options.put("view", "true");
+        scan(new ClojureFilter(), data, options, bh);
+    }
+
+    @Benchmark
+    public void clojureBatchFilter(SourceData data, Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("pred",
+                "(fn [kvs] (keep-indexed (fn [i [k v]] (when (.startsWith (str (.getRow k)) \"r0000\") i)) kvs))");
+        scan(new ClojureBatchFilter(), data, options, bh);
+    }
+}
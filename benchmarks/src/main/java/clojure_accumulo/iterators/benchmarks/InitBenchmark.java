@@ -0,0 +1,55 @@
+package clojure_accumulo.iterators.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import clojure_accumulo.iterators.ClojureFilter;
+import clojure_accumulo.iterators.ClojureFunctionCache;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The cost of initializing a ClojureFilter, with and without a compiled
+ * function already in the cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class InitBenchmark {
+    private static final String PRED =
+            "(require '[clojure.string :as string])" +
+            "(fn [[k v]] (string/blank? (str (.getRow k))))";
+
+    private final SortedMap<Key, Value> map = new TreeMap<Key, Value>();
+
+    private ClojureFilter init() throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("pred", PRED);
+
+        ClojureFilter filter = new ClojureFilter();
+        filter.init(new SortedMapIterator(map), options, null);
+        return filter;
+    }
+
+    @Benchmark
+    public ClojureFilter compile() throws IOException {
+        ClojureFunctionCache.getInstance().clear();
+        return init();
+    }
+
+    @Benchmark
+    public ClojureFilter cached() throws IOException {
+        return init();
+    }
+}
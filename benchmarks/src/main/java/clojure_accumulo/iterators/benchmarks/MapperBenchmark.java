@@ -0,0 +1,53 @@
+package clojure_accumulo.iterators.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import clojure_accumulo.iterators.ClojureMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Scans a whole source through ClojureMapper, replacing each value with its
+ * length.  Compare against FilterBenchmark.source for the cost of the scan
+ * itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MapperBenchmark {
+
+    private static void scan(Map<String, String> options, SourceData data, Blackhole bh) throws IOException {
+        ClojureMapper mapper = new ClojureMapper();
+        mapper.init(data.source(), options, null);
+        SourceData.drain(mapper, bh);
+    }
+
+    @Benchmark
+    public void clojureMapper(SourceData data, Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("f", "(fn [[k v]] (alength (.get v)))");
+        scan(options, data, bh);
+    }
+
+    @Benchmark
+    public void clojureMapperView(SourceData data, Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("f", "(fn [e] (.length (:value e)))");
+        options.put("view", "true");
+        scan(options, data, bh);
+    }
+
+    @Benchmark
+    public void clojureMapperRawLong(SourceData data, Blackhole bh) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("f", "(fn [e] (.length (:value e)))");
+        options.put("view", "true");
+        options.put("encoding", "raw-long");
+        scan(options, data, bh);
+    }
+}
@@ -0,0 +1,80 @@
+package clojure_accumulo.iterators.benchmarks;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * An in-memory table for the iterators to scan.
+ *
+ * keyShape "tall" puts every entry in its own row, while "wide" puts 100
+ * columns in each row.  Values are random printable bytes.
+ */
+@State(Scope.Benchmark)
+public class SourceData {
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"16", "256"})
+    public int valueSize;
+
+    @Param({"tall", "wide"})
+    public String keyShape;
+
+    private SortedMap<Key, Value> map;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        map = new TreeMap<Key, Value>();
+
+        for (int i = 0; i < size; i++) {
+            String row;
+            String qualifier;
+            if (keyShape.equals("wide")) {
+                row = String.format("r%08d", i / 100);
+                qualifier = String.format("q%03d", i % 100);
+            } else {
+                row = String.format("r%08d", i);
+                qualifier = "q";
+            }
+
+            byte[] value = new byte[valueSize];
+            for (int j = 0; j < valueSize; j++) {
+                value[j] = (byte) ('a' + random.nextInt(26));
+            }
+
+            map.put(new Key(row, "f", qualifier, 0L), new Value(value));
+        }
+    }
+
+    public SortedKeyValueIterator<Key, Value> source() {
+        return new SortedMapIterator(map);
+    }
+
+    /**
+     * Scan everything an iterator returns.
+     */
+    public static void drain(SortedKeyValueIterator<Key, Value> iter, Blackhole bh) throws IOException {
+        iter.seek(new Range(), Collections.<ByteSequence>emptyList(), false);
+        while (iter.hasTop()) {
+            bh.consume(iter.getTopKey());
+            bh.consume(iter.getTopValue());
+            iter.next();
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package clojure_accumulo.iterators;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import clojure.lang.BigInt;
+import clojure.lang.IPersistentVector;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.PersistentList;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+
+/**
+ * The compact binary format behind ValueEncoding.BINARY.
+ *
+ * Every item starts with a one byte tag.  Integers are zig-zag varints,
+ * doubles are eight big-endian bytes, strings, keywords and symbols are a
+ * varint length followed by UTF-8 and collections are a varint count followed
+ * by their items.  Sketches are a varint length followed by their own bytes,
+ * and a Value holding nothing but a sketch is just the sketch's bytes, whose
+ * header does not start with any tag.  Anything else falls back to its
+ * printed form, which is read back with the Clojure reader.
+ */
+final class BinaryValueCodec {
+    static final int NIL = 0;
+    static final int TRUE = 1;
+    static final int FALSE = 2;
+    static final int LONG = 3;
+    static final int DOUBLE = 4;
+    static final int STRING = 5;
+    static final int BYTES = 6;
+    static final int KEYWORD = 7;
+    static final int SYMBOL = 8;
+    static final int VECTOR = 9;
+    static final int LIST = 10;
+    static final int MAP = 11;
+    static final int SET = 12;
+    static final int BIGINT = 13;
+    static final int BIGDEC = 14;
+    static final int PRINTED = 15;
+    static final int SKETCH = 16;
+
+    /**
+     * A growable byte buffer, reused by each thread so that encoding only
+     * allocates the final array.
+     */
+    static final class Output {
+        byte[] buf = new byte[256];
+        int count;
+
+        private void ensure(int n) {
+            if (count + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+            }
+        }
+
+        void write(int b) {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        void writeVarint(long l) {
+            while ((l & ~0x7fL) != 0) {
+                write((int) ((l & 0x7f) | 0x80));
+                l >>>= 7;
+            }
+            write((int) l);
+        }
+
+        void writeFixedLong(long l) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[count++] = (byte) (l >>> shift);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+    private static final ThreadLocal<Output> output = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    /**
+     * @return this thread's output buffer, emptied
+     */
+    static Output output() {
+        Output out = output.get();
+        out.count = 0;
+        return out;
+    }
+
+    private BinaryValueCodec() {
+    }
+
+    static byte[] encode(Object obj) {
+        Output out = output();
+        write(out, obj);
+        return out.toByteArray();
+    }
+
+    private static void writeUtf8(Output out, String s) {
+        byte[] bytes = utf8(s);
+        out.writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeItems(Output out, int tag, Collection<?> items) {
+        out.write(tag);
+        out.writeVarint(items.size());
+        for (Object item : items) {
+            write(out, item);
+        }
+    }
+
+    static void write(Output out, Object obj) {
+        if (obj == null) {
+            out.write(NIL);
+        } else if (obj instanceof Boolean) {
+            out.write((Boolean) obj ? TRUE : FALSE);
+        } else if (obj instanceof Long || obj instanceof Integer || obj instanceof Short || obj instanceof Byte) {
+            long l = ((Number) obj).longValue();
+            out.write(LONG);
+            out.writeVarint((l << 1) ^ (l >> 63));
+        } else if (obj instanceof Double || obj instanceof Float) {
+            out.write(DOUBLE);
+            out.writeFixedLong(Double.doubleToLongBits(((Number) obj).doubleValue()));
+        } else if (obj instanceof String) {
+            out.write(STRING);
+            writeUtf8(out, (String) obj);
+        } else if (obj instanceof byte[]) {
+            byte[] bytes = (byte[]) obj;
+            out.write(BYTES);
+            out.writeVarint(bytes.length);
+            out.write(bytes);
+        } else if (obj instanceof Keyword) {
+            out.write(KEYWORD);
+            writeUtf8(out, ((Keyword) obj).sym.toString());
+        } else if (obj instanceof Symbol) {
+            out.write(SYMBOL);
+            writeUtf8(out, obj.toString());
+        } else if (obj instanceof BigInt || obj instanceof BigInteger) {
+            out.write(BIGINT);
+            writeUtf8(out, obj.toString());
+        } else if (obj instanceof BigDecimal) {
+            out.write(BIGDEC);
+            writeUtf8(out, obj.toString());
+        } else if (obj instanceof Sketch) {
+            byte[] bytes = ((Sketch) obj).toBytes();
+            out.write(SKETCH);
+            out.writeVarint(bytes.length);
+            out.write(bytes);
+        } else if (obj instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) obj;
+            out.write(MAP);
+            out.writeVarint(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                write(out, e.getKey());
+                write(out, e.getValue());
+            }
+        } else if (obj instanceof Set) {
+            writeItems(out, SET, (Set<?>) obj);
+        } else if (obj instanceof IPersistentVector || obj instanceof RandomAccess) {
+            writeItems(out, VECTOR, (Collection<?>) obj);
+        } else if (obj instanceof Collection) {
+            writeItems(out, LIST, (Collection<?>) obj);
+        } else {
+            out.write(PRINTED);
+            writeUtf8(out, RT.printString(obj));
+        }
+    }
+
+    /**
+     * A cursor over the bytes being decoded.
+     */
+    static final class Input {
+        final byte[] buf;
+        int pos;
+
+        Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        long readVarint() {
+            long l = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                l |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return l;
+        }
+
+        long readFixedLong() {
+            long l = 0;
+            for (int i = 0; i < 8; i++) {
+                l = (l << 8) | (buf[pos++] & 0xff);
+            }
+            return l;
+        }
+
+        byte[] readBytes() {
+            int length = (int) readVarint();
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        String readUtf8() {
+            int length = (int) readVarint();
+            String s = utf8(buf, pos, length);
+            pos += length;
+            return s;
+        }
+    }
+
+    static Object decode(byte[] bytes, int offset, int length) {
+        if (Sketch.isSketch(bytes, offset, length)) {
+            return Sketch.fromBytes(bytes, offset, length);
+        }
+
+        Input in = new Input(bytes, offset);
+        Object ret = read(in);
+        if (in.pos != offset + length) {
+            throw new IllegalArgumentException("trailing bytes after binary value");
+        }
+        return ret;
+    }
+
+    private static List<Object> readItems(Input in, int itemsPerCount) {
+        int count = (int) in.readVarint() * itemsPerCount;
+        List<Object> items = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(read(in));
+        }
+        return items;
+    }
+
+    private static Object read(Input in) {
+        int tag = in.buf[in.pos++];
+        switch (tag) {
+            case NIL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case LONG:
+                long l = in.readVarint();
+                return (l >>> 1) ^ -(l & 1);
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readFixedLong());
+            case STRING:
+                return in.readUtf8();
+            case BYTES:
+                return in.readBytes();
+            case KEYWORD:
+                return Keyword.intern(Symbol.intern(in.readUtf8()));
+            case SYMBOL:
+                return Symbol.intern(in.readUtf8());
+            case BIGINT:
+                return BigInt.fromBigInteger(new BigInteger(in.readUtf8()));
+            case BIGDEC:
+                return new BigDecimal(in.readUtf8());
+            case VECTOR:
+                return PersistentVector.create(readItems(in, 1));
+            case LIST:
+                return PersistentList.create(readItems(in, 1));
+            case SET:
+                return PersistentHashSet.create(readItems(in, 1));
+            case MAP:
+                return RT.map(readItems(in, 2).toArray());
+            case PRINTED:
+                return RT.readString(in.readUtf8());
+            case SKETCH:
+                byte[] sketch = in.readBytes();
+                return Sketch.fromBytes(sketch, 0, sketch.length);
+            default:
+                throw new IllegalArgumentException("unknown binary value tag " + tag);
+        }
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String utf8(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package clojure_accumulo.iterators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import clojure.lang.IFn;
+import clojure.lang.ISeq;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.KeyValue;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.OptionDescriber;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+
+/**
+ * A variant of ClojureFilter that evaluates its predicate over chunks of
+ * entries rather than one entry at a time.
+ *
+ * The iterator reads up to batchSize entries ahead from its source and calls
+ * pred once with a vector of key-value map entries.  pred returns either a
+ * java.util.BitSet or a seq of the indexes of the entries to accept.
+ *
+ * For example,
+ *
+ * (fn [kvs]
+ *   (keep-indexed (fn [i [k v]] (when (= (str (.getRow k)) "a") i)) kvs))
+ *
+ * accepts the entries in row "a".
+ */
+public final class ClojureBatchFilter extends WrappingIterator implements OptionDescriber {
+    private static final String fnOption = "pred";
+    private static final String batchSizeOption = "batchSize";
+    private static final int defaultBatchSize = 256;
+    private IFn fn;
+    private int batchSize = defaultBatchSize;
+    private final List<Key> keys = new ArrayList<Key>();
+    private final List<Value> values = new ArrayList<Value>();
+    private BitSet accepted = new BitSet();
+    private int pos = -1;
+
+    /**
+     * Read the next batch from the source and ask pred which entries to keep.
+     */
+    private void fill() throws IOException {
+        keys.clear();
+        values.clear();
+
+        List<KeyValue> kvs = new ArrayList<KeyValue>(batchSize);
+        while (getSource().hasTop() && keys.size() < batchSize) {
+            // The source reuses its key and value, so copy them.
+            Key k = new Key(getSource().getTopKey());
+            Value v = new Value(getSource().getTopValue().get(), true);
+
+            keys.add(k);
+            values.add(v);
+            kvs.add(new KeyValue(k, v.get()));
+
+            getSource().next();
+        }
+
+        if (keys.isEmpty()) {
+            accepted = new BitSet();
+            return;
+        }
+
+        accepted = toBitSet(fn.invoke(PersistentVector.create(kvs)));
+
+        // Like Filter, deleted keys are passed through rather than judged.
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i).isDeleted()) {
+                accepted.set(i);
+            }
+        }
+    }
+
+    private static BitSet toBitSet(Object ret) {
+        if (ret instanceof BitSet) {
+            return (BitSet) ret;
+        }
+
+        BitSet bits = new BitSet();
+        for (ISeq s = RT.seq(ret); s != null; s = s.next()) {
+            bits.set(RT.intCast(s.first()));
+        }
+        return bits;
+    }
+
+    /**
+     * Move pos to the next accepted entry at or after from, reading further
+     * batches as needed.
+     */
+    private void findTop(int from) throws IOException {
+        pos = accepted.nextSetBit(from);
+        while (pos < 0 || pos >= keys.size()) {
+            fill();
+            if (keys.isEmpty()) {
+                pos = -1;
+                return;
+            }
+            pos = accepted.nextSetBit(0);
+        }
+    }
+
+    @Override
+    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
+        super.init(source, options, env);
+
+        fn = ClojureIteratorUtils.getFn(options, fnOption, "ClojureBatchFilter");
+
+        String batchSizeString = options.get(batchSizeOption);
+        if (batchSizeString != null) {
+            batchSize = Integer.parseInt(batchSizeString);
+            if (batchSize < 1) {
+                throw new IllegalArgumentException(batchSizeOption + " must be positive");
+            }
+        }
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        ClojureBatchFilter copy = new ClojureBatchFilter();
+        copy.setSource(getSource().deepCopy(env));
+        copy.fn = fn;
+        copy.batchSize = batchSize;
+        return copy;
+    }
+
+    @Override
+    public boolean hasTop() {
+        return pos >= 0;
+    }
+
+    @Override
+    public Key getTopKey() {
+        return (pos >= 0) ? keys.get(pos) : null;
+    }
+
+    @Override
+    public Value getTopValue() {
+        return (pos >= 0) ? values.get(pos) : null;
+    }
+
+    @Override
+    public void next() throws IOException {
+        findTop(pos + 1);
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        super.seek(range, columnFamilies, inclusive);
+
+        keys.clear();
+        values.clear();
+        accepted = new BitSet();
+        findTop(0);
+    }
+
+    public IteratorOptions describeOptions() {
+        Map<String, String> namedOptions = new HashMap<String, String>();
+        namedOptions.put(fnOption, "String containing filter predicate function over a vector of entries");
+        namedOptions.put(batchSizeOption, "Optional number of entries passed to pred at once (default " + defaultBatchSize + ")");
+
+        return new IteratorOptions("cljbatchfilter",
+                "ClojureBatchFilter allows a Clojure function to be passed in and invoked on chunks of key-value pairs",
+                namedOptions,
+                Collections.<String>emptyList());
+    }
+
+    public boolean validateOptions(Map<String, String> options) {
+        return ClojureIteratorUtils.hasFn(options, fnOption);
+    }
+}
@@ -1,16 +1,28 @@
 package clojure_accumulo.iterators;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import clojure.lang.IFn;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.lang.Util;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.KeyValue;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.Combiner;
 import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
 import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
 
 /**
  * Allow a Clojure function to implement the accept method in a Combiner. The
@@ -19,30 +31,327 @@ import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
  *
  * Basically, this class is a server-side implementation of "reduce" where the
  * collection is a sorted map of Keys and Values.
+ *
+ * Results other than Values are written with the encoding named by the
+ * encoding option (see ValueEncoding), EDN by default.  Use raw-long to store
+ * counts and sums as eight byte longs.
+ *
+ * If the numeric option is long or double, the combiner runs in numeric mode.
+ * f must then be type-hinted to take and return primitives, for example
+ *
+ * (fn ^long [^long acc ^long x] (+ acc x))
+ *
+ * so that it compiles to IFn$LLL (or IFn$DDD for doubles).  Values are decoded
+ * from their bytes according to the type option (VARLEN, FIXEDLEN or STRING,
+ * as for LongCombiner, FIXEDLEN by default), the accumulator stays unboxed
+ * for the whole reduction and the result is written back in the same type.
+ * val, if given, must be a number.
+ *
+ * If the step option is given instead of f, the combiner runs in streaming
+ * mode, with separate functions to start, step and finish the reduction of
+ * each key:
+ *
+ * init       optional function of no arguments returning the starting value;
+ *            if it is not given, val is used, and without val (step) is
+ *            called with no arguments
+ * step       function of the accumulator and a KeyValue
+ * complete   optional function of the final accumulator returning the result
+ *
+ * step sees every value the same way, so it never has to tell a KeyValue from
+ * an accumulator.  If step returns a Reduced (or a clojure.lang.Reduced), the
+ * reduction stops there and the combiner seeks past the remaining versions of
+ * the key rather than reading them, so "first n" or "any match" reductions of
+ * a key with many versions finish early.  At compaction scope the result of
+ * one combine is a version in the next, so step must also accept its own
+ * completed results.
+ *
+ * If the sketch option is hll, tdigest or countmin, the combiner needs no
+ * function and keeps a HyperLogLog, TDigest or CountMinSketch of each key's
+ * values, sized by the precision, compression or width and depth options.
+ * Values that already hold a sketch, such as those written by an earlier
+ * compaction, are merged; any other value is added, for tdigest as a number
+ * stored according to the type option (FIXEDLEN by default).  Sketches are
+ * fixed in size however many values a key has, so this works at every scope.
+ *
+ * If the safe option is true, the combiner runs in compaction-safe mode.
+ * f is then a function of two decoded values, not KeyValues, and each key's
+ * values are decoded with the encoding option, folded with f and encoded
+ * again, so a value written by an earlier compaction is read exactly like
+ * one written by a client.  val cannot be used, since it would be counted
+ * again by every compaction.  f must be associative for the results not to
+ * depend on how compactions happen to group the values.  If the sample
+ * option holds a Clojure expression evaluating to a few sample values, init
+ * checks that folding them all gives the same result as folding each split
+ * of them separately, through the encoding, and then combining the two; the
+ * check runs once per process for each f, sample and encoding, of which
+ * as many are remembered as the ClojureFunctionCache holds functions.  At
+ * minc and majc scope the totals and throughput of each compaction are
+ * logged.
+ *
+ * If the partial option is true, complete is skipped and each result is
+ * written with ValueEncoding.BINARY, for PartialAggregates to merge across
+ * tablets with the combine option.  With f, every version is then folded in
+ * as (f acc kv), starting from val, or from (f) if val is not given, so a
+ * key with a single version gives a partial of the same kind as one with
+ * many.  partial is meant for scans, and cannot be used in numeric mode.
+ *
+ * The maxInvokeMillis, maxBatchMillis, maxBatchBytes and maxValueBytes
+ * options limit what f (or step) may cost, as for ClojureFilter (see
+ * FunctionBudget), and passing any of them fails the scan or compaction.
+ * Dropping a version would silently change its key's result, so
+ * budgetPolicy cannot be drop.  Accumulo 1.4 cannot resume a combiner part
+ * way through a key's versions, so there is no yielding either.
+ *
+ * Values read, results emitted and the time spent in f and in encoding its
+ * results are recorded in the FunctionMetrics for f, and logged when the scan
+ * ends if logMetrics is true.
  */
 public final class ClojureCombiner extends Combiner {
     private static final String fnOption = "f";
     private static final String valOption = "val";
+    private static final String numericOption = "numeric";
+    private static final String typeOption = "type";
+    private static final String initOption = "init";
+    private static final String stepOption = "step";
+    private static final String completeOption = "complete";
+    private static final String sketchOption = "sketch";
+    private static final String precisionOption = "precision";
+    private static final String compressionOption = "compression";
+    private static final String widthOption = "width";
+    private static final String depthOption = "depth";
+    private static final String safeOption = "safe";
+    private static final String sampleOption = "sample";
+    private static final int maxCheckedSamples = ClojureFunctionCache.getInstance().getMaxSize();
+    // Hashes of the f, sample and encoding combinations already checked,
+    // bounded like the ClojureFunctionCache the functions come from.
+    private static final Map<String, Boolean> checkedSamples =
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > maxCheckedSamples;
+                }
+            };
     private IFn fn;
+    private IFn init;
+    private IFn complete;
+    private SkippingSource skippingSource;
     private Object val;
+    private boolean partial;
+    private ValueEncoding encoding = ValueEncoding.EDN;
+    private ValueEncoding inputEncoding = ValueEncoding.EDN;
+    private String numeric;
+    private NumberType type = NumberType.FIXEDLEN;
+    private IteratorStats stats;
+    private FunctionBudget budget;
+    private boolean safe;
+    private String sketch;
+    private int precision = HyperLogLog.defaultPrecision;
+    private double compression = TDigest.defaultCompression;
+    private int width = CountMinSketch.defaultWidth;
+    private int depth = CountMinSketch.defaultDepth;
+
+    /**
+     * Sits between the Combiner and its source so that a streaming reduction
+     * that finishes early can seek past the remaining versions of its key.
+     *
+     * Combiner drains whatever its ValueIterator has not read, and that
+     * iterator has already decided that it has a next value, so the first
+     * next() after a skip is absorbed here instead of passed on.
+     */
+    private static final class SkippingSource extends WrappingIterator {
+        private static final Value skippedValue = new Value(new byte[0]);
+        private Range range;
+        private Collection<ByteSequence> columnFamilies;
+        private boolean inclusive;
+        private boolean exhausted;
+        private boolean skipped;
+
+        SkippingSource(SortedKeyValueIterator<Key, Value> source) {
+            setSource(source);
+        }
+
+        void skipVersions(Key key) throws IOException {
+            Key start = key.followingKey(PartialKey.ROW_COLFAM_COLQUAL_COLVIS);
+            if (range.afterEndKey(start)) {
+                exhausted = true;
+            } else {
+                getSource().seek(new Range(start, true, range.getEndKey(), range.isEndKeyInclusive()), columnFamilies, inclusive);
+            }
+            skipped = true;
+        }
+
+        @Override
+        public boolean hasTop() {
+            return !exhausted && super.hasTop();
+        }
+
+        @Override
+        public Value getTopValue() {
+            return skipped ? skippedValue : super.getTopValue();
+        }
+
+        @Override
+        public void next() throws IOException {
+            if (skipped) {
+                skipped = false;
+            } else {
+                super.next();
+            }
+        }
+
+        @Override
+        public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+            this.range = range;
+            this.columnFamilies = columnFamilies;
+            this.inclusive = inclusive;
+            this.exhausted = false;
+            this.skipped = false;
+            super.seek(range, columnFamilies, inclusive);
+        }
+
+        @Override
+        public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+            return new SkippingSource(getSource().deepCopy(env));
+        }
+    }
+
+    private long startBudget() {
+        return (budget == null) ? 0 : budget.startInvoke();
+    }
+
+    private void endBudget(long budgetStart) {
+        if (budget != null) {
+            budget.endInvoke(budgetStart);
+        }
+    }
+
+    /**
+     * Read the budget options.  Dropping a version would silently change the
+     * result for its key, so only the fail policy is allowed.
+     */
+    private void initBudget(Map<String, String> options) {
+        budget = FunctionBudget.create("ClojureCombiner", options);
+        if (budget != null && "drop".equalsIgnoreCase(options.get(FunctionBudget.budgetPolicyOption))) {
+            throw new IllegalArgumentException(FunctionBudget.budgetPolicyOption + " must be fail for ClojureCombiner");
+        }
+    }
+
+    private Value reduceStreaming(Key key, Iterator<Value> valueIterator) {
+        Object acc;
+        if (init != null) {
+            acc = init.invoke();
+        } else if (val != null) {
+            acc = val;
+        } else {
+            acc = fn.invoke();
+        }
+
+        while (valueIterator.hasNext()) {
+            Value v = valueIterator.next();
+            stats.read();
+
+            long start = stats.startInvoke();
+            long budgetStart = startBudget();
+            acc = fn.invoke(acc, new KeyValue(key, v.get()));
+            stats.endInvoke(start);
+            endBudget(budgetStart);
+
+            if (Reduced.isReduced(acc)) {
+                acc = Reduced.unwrap(acc);
+                if (valueIterator.hasNext()) {
+                    try {
+                        skippingSource.skipVersions(key);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                break;
+            }
+        }
+
+        if (complete != null && !partial) {
+            acc = complete.invoke(acc);
+        }
+
+        long encodeStart = stats.startEncode();
+        Value value = encoding.toValue(acc);
+        stats.endEncode(encodeStart);
+        return value;
+    }
+
+    private Value reduceLong(Iterator<Value> valueIterator) {
+        IFn.LLL f = (IFn.LLL) fn;
+
+        long acc;
+        if (val != null) {
+            acc = ((Number) val).longValue();
+        } else {
+            byte[] b = valueIterator.next().get();
+            stats.read();
+            acc = type.decodeLong(b, 0, b.length);
+        }
+
+        while (valueIterator.hasNext()) {
+            byte[] b = valueIterator.next().get();
+            stats.read();
+            long start = stats.startInvoke();
+            long budgetStart = startBudget();
+            acc = f.invokePrim(acc, type.decodeLong(b, 0, b.length));
+            stats.endInvoke(start);
+            endBudget(budgetStart);
+        }
+
+        return new Value(type.encodeLong(acc), false);
+    }
+
+    private Value reduceDouble(Iterator<Value> valueIterator) {
+        IFn.DDD f = (IFn.DDD) fn;
+
+        double acc;
+        if (val != null) {
+            acc = ((Number) val).doubleValue();
+        } else {
+            byte[] b = valueIterator.next().get();
+            stats.read();
+            acc = type.decodeDouble(b, 0, b.length);
+        }
+
+        while (valueIterator.hasNext()) {
+            byte[] b = valueIterator.next().get();
+            stats.read();
+            long start = stats.startInvoke();
+            long budgetStart = startBudget();
+            acc = f.invokePrim(acc, type.decodeDouble(b, 0, b.length));
+            stats.endInvoke(start);
+            endBudget(budgetStart);
+        }
+
+        return new Value(type.encodeDouble(acc), false);
+    }
 
     private Value reduceInternal(Key key, Iterator<Value> valueIterator) {
         Value v1;
         if (valueIterator.hasNext()) {
             v1 = valueIterator.next();
+            stats.read();
         } else {
             // I don't think that we can get here.
-            return ClojureIteratorUtils.toValue(fn.invoke());
+            return encoding.toValue(fn.invoke());
         }
 
         Value v2;
         if (valueIterator.hasNext()) {
             v2 = valueIterator.next();
+            stats.read();
         } else {
             return v1;
         }
 
+        long start = stats.startInvoke();
+        long budgetStart = startBudget();
         Object ret = fn.invoke(new KeyValue(key, v1.get()), new KeyValue(key, v2.get()));
+        stats.endInvoke(start);
+        endBudget(budgetStart);
 
         return reduceInternal(key, valueIterator, ret);
     }
@@ -51,42 +360,369 @@ public final class ClojureCombiner extends Combiner {
         Object ret = start;
         while (valueIterator.hasNext()) {
             Value v = valueIterator.next();
+            stats.read();
             KeyValue kv = new KeyValue(key, v.get());
 
+            long invokeStart = stats.startInvoke();
+            long budgetStart = startBudget();
             ret = fn.invoke(ret, kv);
+            stats.endInvoke(invokeStart);
+            endBudget(budgetStart);
         }
 
-        return ClojureIteratorUtils.toValue(ret);
+        long encodeStart = stats.startEncode();
+        Value value = encoding.toValue(ret);
+        stats.endEncode(encodeStart);
+        return value;
+    }
+
+    private Sketch newSketch() {
+        if (sketch.equals("hll")) {
+            return new HyperLogLog(precision);
+        } else if (sketch.equals("tdigest")) {
+            return new TDigest(compression);
+        }
+        return new CountMinSketch(width, depth);
+    }
+
+    /**
+     * @return the sketch in b, or null if b is a plain value, even one that
+     * happens to start like a sketch
+     */
+    private static Sketch readSketch(byte[] b) {
+        if (!Sketch.isSketch(b, 0, b.length)) {
+            return null;
+        }
+        try {
+            return Sketch.fromBytes(b, 0, b.length);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private Value reduceSketch(Iterator<Value> valueIterator) {
+        Sketch acc = newSketch();
+
+        while (valueIterator.hasNext()) {
+            Value v = valueIterator.next();
+            stats.read();
+
+            byte[] b = v.get();
+            long start = stats.startInvoke();
+            Sketch sketch = readSketch(b);
+            if (sketch != null) {
+                acc.merge(sketch);
+            } else if (acc instanceof TDigest) {
+                ((TDigest) acc).add(type.decodeDouble(b, 0, b.length), 1);
+            } else {
+                acc.add(b);
+            }
+            stats.endInvoke(start);
+        }
+
+        long encodeStart = stats.startEncode();
+        Value value = acc.toValue();
+        stats.endEncode(encodeStart);
+        return value;
+    }
+
+    private Value reduceSafe(Iterator<Value> valueIterator) {
+        Value first = valueIterator.next();
+        stats.read();
+        if (!valueIterator.hasNext() && !partial) {
+            return first;
+        }
+
+        Object acc = inputEncoding.decode(first);
+        while (valueIterator.hasNext()) {
+            Object x = inputEncoding.decode(valueIterator.next());
+            stats.read();
+
+            long start = stats.startInvoke();
+            long budgetStart = startBudget();
+            acc = fn.invoke(acc, x);
+            stats.endInvoke(start);
+            endBudget(budgetStart);
+        }
+
+        long encodeStart = stats.startEncode();
+        Value value = encoding.toValue(acc);
+        stats.endEncode(encodeStart);
+        return value;
+    }
+
+    private static Object fold(IFn f, List<?> xs) {
+        Object acc = xs.get(0);
+        for (int i = 1; i < xs.size(); i++) {
+            acc = f.invoke(acc, xs.get(i));
+        }
+        return acc;
+    }
+
+    private static Object roundTrip(ValueEncoding encoding, Object x) {
+        return encoding.decode(encoding.toValue(x));
+    }
+
+    /**
+     * Check that f gives the same result however its samples are split
+     * between compactions.
+     *
+     * @throws IllegalArgumentException if it does not
+     */
+    static void checkRecombination(IFn f, ValueEncoding encoding, List<?> samples) {
+        for (Object x : samples) {
+            if (!Util.equiv(x, roundTrip(encoding, x))) {
+                throw new IllegalArgumentException("sample " + RT.printString(x) + " does not survive the " +
+                        encoding.getOptionValue() + " encoding");
+            }
+        }
+
+        Object whole = fold(f, samples);
+        for (int i = 1; i < samples.size(); i++) {
+            Object left = roundTrip(encoding, fold(f, samples.subList(0, i)));
+            Object right = roundTrip(encoding, fold(f, samples.subList(i, samples.size())));
+            Object recombined = roundTrip(encoding, f.invoke(left, right));
+            if (!Util.equiv(roundTrip(encoding, whole), recombined)) {
+                throw new IllegalArgumentException("f is not safe to use at compaction: it gives " + RT.printString(whole) +
+                        " for all the samples but " + RT.printString(recombined) + " when they are split after " + i);
+            }
+        }
     }
 
     @Override
     public Value reduce(Key key, Iterator<Value> valueIterator) {
-        return (val == null) ? reduceInternal(key, valueIterator) : reduceInternal(key, valueIterator, val);
+        stats.emitted();
+
+        Value value;
+        if (sketch != null) {
+            value = reduceSketch(valueIterator);
+        } else if (safe) {
+            value = reduceSafe(valueIterator);
+        } else if ("long".equals(numeric)) {
+            value = reduceLong(valueIterator);
+        } else if ("double".equals(numeric)) {
+            value = reduceDouble(valueIterator);
+        } else if (skippingSource != null) {
+            value = reduceStreaming(key, valueIterator);
+        } else {
+            value = (val != null) ? reduceInternal(key, valueIterator, val) :
+                    // A partial must come out of f even for a single version.
+                    partial ? reduceInternal(key, valueIterator, fn.invoke()) : reduceInternal(key, valueIterator);
+        }
+
+        if (budget != null) {
+            budget.checkValue(value);
+        }
+        return value;
     }
 
     @Override
-    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
-        super.init(source, options, env);
+    public void next() throws IOException {
+        super.next();
 
-        if (options == null) {
-            throw new IllegalArgumentException(fnOption + " must be set for ClojureCombiner");
+        if (!hasTop()) {
+            stats.finish();
         }
+    }
 
-        String fnString = options.get(fnOption);
-        if (fnString == null) {
-            throw new IllegalArgumentException(fnOption + " must be set for ClojureCombiner");
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        stats.flush();
+        if (budget != null) {
+            budget.reset();
         }
+        super.seek(range, columnFamilies, inclusive);
+
+        if (!hasTop()) {
+            stats.finish();
+        }
+    }
+
+    @Override
+    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
+        if (options.containsKey(sketchOption)) {
+            initSketch(source, options, env);
+            return;
+        }
+        if (Boolean.parseBoolean(options.get(safeOption))) {
+            initSafe(source, options, env);
+            return;
+        }
+
+        if (ClojureIteratorUtils.hasFn(options, stepOption)) {
+            if (ClojureIteratorUtils.hasFn(options, fnOption)) {
+                throw new IllegalArgumentException(fnOption + " and " + stepOption + " cannot both be set for ClojureCombiner");
+            }
+            if (options.containsKey(numericOption)) {
+                throw new IllegalArgumentException(numericOption + " cannot be used with " + stepOption);
+            }
 
-        Object obj = ClojureIteratorUtils.eval(fnString);
-        if (!(obj instanceof IFn)) {
-            throw new IllegalArgumentException(fnOption + " must compile to something that implements IFn");
+            skippingSource = new SkippingSource(source);
+            super.init(skippingSource, options, env);
+
+            long start = System.nanoTime();
+            fn = ClojureIteratorUtils.getFn(options, stepOption, "ClojureCombiner");
+            if (ClojureIteratorUtils.hasFn(options, initOption)) {
+                init = ClojureIteratorUtils.getFn(options, initOption, "ClojureCombiner");
+            }
+            if (ClojureIteratorUtils.hasFn(options, completeOption)) {
+                complete = ClojureIteratorUtils.getFn(options, completeOption, "ClojureCombiner");
+            }
+            stats = IteratorStats.create("ClojureCombiner", options, stepOption, System.nanoTime() - start);
+        } else {
+            super.init(source, options, env);
+
+            long start = System.nanoTime();
+            fn = ClojureIteratorUtils.getFn(options, fnOption, "ClojureCombiner");
+            stats = IteratorStats.create("ClojureCombiner", options, fnOption, System.nanoTime() - start);
         }
-        fn = (IFn) obj;
+
+        initBudget(options);
+        partial = PartialAggregates.isPartial(options);
+        inputEncoding = ClojureIteratorUtils.getEncoding(options);
+        encoding = partial ? ValueEncoding.BINARY : inputEncoding;
 
         String valString = options.get(valOption);
         if (valString != null) {
             val = ClojureIteratorUtils.eval(valString);
         }
+
+        numeric = options.get(numericOption);
+        if (numeric != null && partial) {
+            throw new IllegalArgumentException(PartialAggregates.partialOption + " cannot be used with " + numericOption);
+        }
+        if (numeric != null) {
+            if (numeric.equals("long")) {
+                if (!(fn instanceof IFn.LLL)) {
+                    throw new IllegalArgumentException(fnOption + " must take and return ^long to use numeric long");
+                }
+            } else if (numeric.equals("double")) {
+                if (!(fn instanceof IFn.DDD)) {
+                    throw new IllegalArgumentException(fnOption + " must take and return ^double to use numeric double");
+                }
+            } else {
+                throw new IllegalArgumentException(numericOption + " must be long or double");
+            }
+
+            if (val != null && !(val instanceof Number)) {
+                throw new IllegalArgumentException(valOption + " must be a number to use " + numericOption);
+            }
+
+            String typeString = options.get(typeOption);
+            if (typeString != null) {
+                type = NumberType.valueOf(typeString);
+            }
+            if (numeric.equals("double") && type == NumberType.VARLEN) {
+                throw new IllegalArgumentException("VARLEN only applies to longs");
+            }
+        }
+    }
+
+    private void initSketch(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
+        if (ClojureIteratorUtils.hasFn(options, fnOption) || ClojureIteratorUtils.hasFn(options, stepOption) ||
+                options.containsKey(numericOption)) {
+            throw new IllegalArgumentException(sketchOption + " cannot be used with " + fnOption + ", " + stepOption + " or " + numericOption);
+        }
+
+        super.init(source, options, env);
+        stats = IteratorStats.create("ClojureCombiner", options, sketchOption, 0);
+
+        sketch = options.get(sketchOption);
+        if (options.containsKey(precisionOption)) {
+            precision = Integer.parseInt(options.get(precisionOption));
+        }
+        if (options.containsKey(compressionOption)) {
+            compression = Double.parseDouble(options.get(compressionOption));
+        }
+        if (options.containsKey(widthOption)) {
+            width = Integer.parseInt(options.get(widthOption));
+        }
+        if (options.containsKey(depthOption)) {
+            depth = Integer.parseInt(options.get(depthOption));
+        }
+        if (options.containsKey(typeOption)) {
+            type = NumberType.valueOf(options.get(typeOption));
+        }
+
+        if (!sketch.equals("hll") && !sketch.equals("tdigest") && !sketch.equals("countmin")) {
+            throw new IllegalArgumentException(sketchOption + " must be hll, tdigest or countmin");
+        }
+        if (sketch.equals("tdigest") && type == NumberType.VARLEN) {
+            throw new IllegalArgumentException("VARLEN only applies to longs");
+        }
+
+        // Fail now rather than on the first reduce.
+        newSketch();
+    }
+
+    private void initSafe(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
+        if (ClojureIteratorUtils.hasFn(options, stepOption) || options.containsKey(numericOption) || options.containsKey(valOption)) {
+            throw new IllegalArgumentException(safeOption + " cannot be used with " + stepOption + ", " + numericOption + " or " + valOption);
+        }
+
+        super.init(source, options, env);
+
+        IteratorScope scope = (env == null) ? IteratorScope.scan : env.getIteratorScope();
+        long start = System.nanoTime();
+        fn = ClojureIteratorUtils.getFn(options, fnOption, "ClojureCombiner");
+        stats = IteratorStats.create("ClojureCombiner(" + scope + ")", options, fnOption, System.nanoTime() - start,
+                scope != IteratorScope.scan);
+
+        initBudget(options);
+        safe = true;
+        partial = PartialAggregates.isPartial(options);
+        inputEncoding = ClojureIteratorUtils.getEncoding(options);
+        encoding = partial ? ValueEncoding.BINARY : inputEncoding;
+
+        String sampleString = options.get(sampleOption);
+        if (sampleString != null) {
+            String checkKey = ClojureFunctionCache.hash(
+                    ClojureIteratorUtils.getFnIdentity(options, fnOption) + "\u0000" + sampleString + "\u0000" + inputEncoding);
+            boolean checked;
+            synchronized (checkedSamples) {
+                checked = checkedSamples.containsKey(checkKey);
+            }
+            if (!checked) {
+                List<Object> samples = new ArrayList<Object>();
+                for (ISeq s = RT.seq(ClojureIteratorUtils.eval(sampleString)); s != null; s = s.next()) {
+                    samples.add(s.first());
+                }
+                if (samples.size() < 2) {
+                    throw new IllegalArgumentException(sampleOption + " must hold at least two values");
+                }
+
+                checkRecombination(fn, inputEncoding, samples);
+                synchronized (checkedSamples) {
+                    checkedSamples.put(checkKey, Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        ClojureCombiner copy = (ClojureCombiner) super.deepCopy(env);
+        copy.fn = fn;
+        copy.init = init;
+        copy.complete = complete;
+        copy.val = val;
+        copy.partial = partial;
+        copy.encoding = encoding;
+        copy.inputEncoding = inputEncoding;
+        copy.numeric = numeric;
+        copy.type = type;
+        copy.stats = stats.copy();
+        copy.budget = (budget == null) ? null : budget.copy();
+        copy.safe = safe;
+        copy.sketch = sketch;
+        copy.precision = precision;
+        copy.compression = compression;
+        copy.width = width;
+        copy.depth = depth;
+        if (skippingSource != null) {
+            copy.skippingSource = (SkippingSource) copy.getSource();
+        }
+        return copy;
     }
 
     @Override
@@ -95,6 +731,26 @@ public final class ClojureCombiner extends Combiner {
 
         io.addNamedOption(fnOption, "String containing combiner reduce function");
         io.addNamedOption(valOption, "Optional string containing initial reduce value");
+        io.addNamedOption(stepOption, "Optional string containing a step function, used instead of f for streaming reduction");
+        io.addNamedOption(initOption, "Optional string containing a function of no arguments returning the starting value for step");
+        io.addNamedOption(completeOption, "Optional string containing a function applied to the result of step");
+        io.addNamedOption(ClojureIteratorUtils.encodingOption, "Optional encoding of results: edn, binary, raw-long or raw-utf8");
+        io.addNamedOption(PartialAggregates.partialOption, "Optional boolean, skip complete and write binary partial results for PartialAggregates");
+        io.addNamedOption(PartialAggregates.combineOption, "Optional string containing a function merging two partial results, used by PartialAggregates");
+        io.addNamedOption(numericOption, "Optional long or double, reduce with a primitive-hinted f");
+        io.addNamedOption(typeOption, "Optional VARLEN, FIXEDLEN or STRING, how numeric values are stored");
+        io.addNamedOption(safeOption, "Optional boolean, fold decoded values with f so that results can be combined again at compaction");
+        io.addNamedOption(sampleOption, "Optional string containing an expression evaluating to sample values, checked with f on init in safe mode");
+        io.addNamedOption(sketchOption, "Optional hll, tdigest or countmin, keep a sketch of each key's values instead of calling f");
+        io.addNamedOption(precisionOption, "Optional HyperLogLog precision (default " + HyperLogLog.defaultPrecision + ")");
+        io.addNamedOption(compressionOption, "Optional TDigest compression (default " + (int) TDigest.defaultCompression + ")");
+        io.addNamedOption(widthOption, "Optional CountMinSketch width (default " + CountMinSketch.defaultWidth + ")");
+        io.addNamedOption(depthOption, "Optional CountMinSketch depth (default " + CountMinSketch.defaultDepth + ")");
+        for (Map.Entry<String, String> e : FunctionBudget.describeOptions().entrySet()) {
+            io.addNamedOption(e.getKey(), e.getKey().equals(FunctionBudget.budgetPolicyOption) ?
+                    "Optional fail, what to do when a budget is exceeded (the only policy for ClojureCombiner)" : e.getValue());
+        }
+        io.addNamedOption(IteratorStats.logMetricsOption, "Optional boolean, log the metrics of each scan when it ends");
         io.setName("cljcombiner");
         io.setDescription("ClojureCombiner allows a Clojure function to be passed in and invoked as the Combiner's reduce method");
 
@@ -0,0 +1,122 @@
+package clojure_accumulo.iterators;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Clojure compilation on a small pool of dedicated threads, so that
+ * tablet server threads initializing iterators only wait for the result, with
+ * a timeout, instead of compiling themselves.
+ *
+ * The number of threads and the timeout in milliseconds are read from the
+ * clojure_accumulo.compile.threads and clojure_accumulo.compile.timeout system
+ * properties.  Work submitted from a compile thread, such as source that
+ * itself evaluates more source, runs inline so the pool cannot deadlock.
+ */
+final class ClojureEvaluator {
+    private static final String threadsProperty = "clojure_accumulo.compile.threads";
+    private static final String timeoutProperty = "clojure_accumulo.compile.timeout";
+    private static final int defaultThreads = 2;
+    private static final long defaultTimeoutMillis = 60000;
+    private static final ClojureEvaluator instance = new ClojureEvaluator(
+            Integer.getInteger(threadsProperty, defaultThreads),
+            Long.getLong(timeoutProperty, defaultTimeoutMillis));
+
+    /**
+     * Marks the threads that belong to a pool.
+     */
+    private static final class CompileThread extends Thread {
+        CompileThread(Runnable r, String name) {
+            super(r, name);
+            setDaemon(true);
+        }
+    }
+
+    private final ExecutorService executor;
+    private final long timeoutMillis;
+
+    ClojureEvaluator(int threads, long timeoutMillis) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("compile threads must be positive");
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return new CompileThread(r, "clojure-accumulo-compile-" + count.incrementAndGet());
+                    }
+                });
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the evaluator shared by every iterator in this process
+     */
+    static ClojureEvaluator getInstance() {
+        return instance;
+    }
+
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Start a task on a compile thread, or run it now if this is one.
+     */
+    void execute(FutureTask<?> task) {
+        if (Thread.currentThread() instanceof CompileThread) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Wait for a task started by execute.
+     *
+     * @param future the task
+     * @param what what the task is doing, for error messages
+     * @return the result of the task
+     * @throws IllegalStateException if the task takes longer than the timeout,
+     * which leaves it running, or the wait is interrupted
+     */
+    <T> T get(Future<T> future, String what) {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(what + " took longer than " + timeoutMillis + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while " + what);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalArgumentException(cause);
+        }
+    }
+
+    /**
+     * Run a task on a compile thread and wait for it.
+     */
+    <T> T call(Callable<T> callable, String what) {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        execute(task);
+        return get(task, what);
+    }
+}
@@ -1,16 +1,23 @@
 package clojure_accumulo.iterators;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 
 import clojure.lang.IFn;
+import clojure.lang.Keyword;
 import clojure.lang.RT;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.KeyValue;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.Filter;
 import org.apache.accumulo.core.iterators.IteratorEnvironment;
 import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.hadoop.io.Text;
 
 /**
  * Allow a Clojure function to implement the accept method in a Filter. The
@@ -19,47 +26,389 @@ import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
  * pred is a function of a single argument, a map entry containing a key-value
  * pair.  If pred returns true, the pair is accepted.
  *
+ * pred may instead return a hint that it will reject everything up to some
+ * point, and the filter seeks its source past those entries rather than
+ * testing them one at a time.  The hints are:
+ *
+ * a Key            skip to that key (inclusive)
+ * :skip-row        skip the rest of the current row
+ * :skip-family     skip the rest of the current column family
+ * :skip-column     skip the remaining versions of the current column
+ *
+ * For example,
+ *
+ * (fn [[k v]]
+ *   (if (.startsWith (str (.getRow k)) "x")
+ *     true
+ *     :skip-row))
+ *
+ * A hint always rejects the current entry, even if negate is true, and the
+ * seek keeps the range, column families and inclusiveness of the original
+ * seek.  Hints that do not move forward are treated as a plain rejection, as
+ * are all hints returned to a direct caller of accept.
+ *
+ * The rows option, written by setRows, restricts the filter to a set of
+ * rows, and the rowPrefixes option, written by setRowPrefixes, to rows
+ * starting with a set of prefixes.  Rather than reading the rows in between,
+ * the filter seeks its source from one to the next, so that a scan over a
+ * whole table for a few thousand scattered rows costs about what a scan of
+ * just those rows does.  pred, which is then optional, is only invoked on
+ * entries in the set, and negate does not apply to the set.
+ *
+ * The families, qualifierPrefixes and others options select the columns
+ * pred is invoked on (see ColumnSelection).  Entries in other columns are
+ * accepted without invoking pred, whatever negate says, or with others set
+ * to drop, rejected; then the filter seeks its source with only the
+ * selected families.
+ *
+ * The setup and rowFn options pass pred the result of a function run once
+ * at init, and of one run once per row, as further arguments (see
+ * FunctionState).
+ *
+ * If the view option is true, pred is passed a reused KeyValueView instead of
+ * a freshly copied KeyValue, and must not hold on to it.
+ *
+ * The maxInvokeMillis, maxBatchMillis, maxBatchBytes and budgetPolicy
+ * options limit what pred may cost (see FunctionBudget).  Under the drop
+ * policy an entry that takes too long is rejected; passing a batch limit
+ * always fails the scan.
+ *
+ * If the yieldAfter option is set and enableYielding has been called, a
+ * single next or seek that examines that many entries without accepting one
+ * yields at the last entry examined (see YieldCallback) instead of running
+ * on through a long stretch of rejections.
+ *
+ * Entries read and accepted and the time spent in pred are recorded in the
+ * FunctionMetrics for pred, and logged when the scan ends if logMetrics is
+ * true.
+ *
  * Basically, this class is a server-side implementation of "filter" where the
  * collection is a sorted map of Keys and Values.
  */
 public final class ClojureFilter extends Filter {
     private static final String fnOption = "pred";
+    private static final String viewOption = "view";
+    private static final String negateOption = "negate";
+    private static final String yieldAfterOption = "yieldAfter";
+    private static final Keyword skipRow = Keyword.intern("skip-row");
+    private static final Keyword skipFamily = Keyword.intern("skip-family");
+    private static final Keyword skipColumn = Keyword.intern("skip-column");
+    private static final Object dropped = new Object();
     private IFn fn;
-    
+    private KeyValueView view;
+    private IteratorStats stats;
+    private FunctionBudget budget;
+    private ColumnSelection selection;
+    private RowSet rowSet;
+    private FunctionState functionState;
+    private int rowIndex;
+    private boolean negate;
+    private Range range;
+    private Collection<ByteSequence> columnFamilies;
+    private boolean inclusive;
+    private boolean exhausted;
+    private long yieldAfter;
+    private YieldCallback yieldCallback;
+
+    /**
+     * Allow the filter to stop early, after yieldAfter entries have been
+     * rejected in a row.  Without the yieldAfter option this does nothing.
+     */
+    public void enableYielding(YieldCallback callback) {
+        this.yieldCallback = callback;
+    }
+
+    /**
+     * Only accept entries in the given rows, seeking from one to the next.
+     *
+     * @param is iterator setting to configure
+     * @param rows Strings, Texts, ByteSequences or byte arrays
+     */
+    public static void setRows(IteratorSetting is, Collection<?> rows) {
+        is.addOption(RowSet.rowsOption, RowSet.encode(rows, false));
+    }
+
+    /**
+     * Only accept entries in rows starting with one of the given prefixes,
+     * seeking from one to the next.
+     *
+     * @param is iterator setting to configure
+     * @param prefixes Strings, Texts, ByteSequences or byte arrays
+     */
+    public static void setRowPrefixes(IteratorSetting is, Collection<?> prefixes) {
+        is.addOption(RowSet.rowPrefixesOption, RowSet.encode(prefixes, true));
+    }
+
+    private Object invoke(Key k, Value v) {
+        stats.read();
+        if (fn == null) {
+            return Boolean.TRUE;
+        }
+
+        Object kv = (view == null) ? new KeyValue(k, v.get()) : view.set(k, v);
+        long start = stats.startInvoke();
+        long budgetStart = (budget == null) ? 0 : budget.startInvoke();
+        Object ret = (functionState == null) ? fn.invoke(kv) : functionState.invoke(fn, kv, k, stats);
+        stats.endInvoke(start);
+
+        if (budget != null && !budget.endInvoke(budgetStart)) {
+            return dropped;
+        }
+        return ret;
+    }
+
+    /**
+     * Called directly, there is no source to seek, so a skip hint is simply
+     * a rejection of k.
+     */
     public boolean accept(Key k, Value v) {
-        KeyValue kv = new KeyValue(k, v.get());
-        return RT.booleanCast(fn.invoke(kv));
+        if (rowSet != null && rowSet.find(k.getRowData()) < 0) {
+            return false;
+        }
+        if (selection != null && !selection.selects(k)) {
+            return !selection.dropsOthers();
+        }
+
+        Object ret = invoke(k, v);
+        boolean accepted = ret != dropped && skipTo(k, ret) == null && RT.booleanCast(ret);
+        if (accepted) {
+            stats.emitted();
+        }
+        return accepted;
+    }
+
+    /**
+     * Translate a skip hint into the key to seek to.
+     *
+     * @return the key to seek to, or null if ret is not a hint
+     */
+    private static Key skipTo(Key k, Object ret) {
+        if (ret instanceof Key) {
+            return (Key) ret;
+        } else if (ret == skipRow) {
+            return k.followingKey(PartialKey.ROW);
+        } else if (ret == skipFamily) {
+            return k.followingKey(PartialKey.ROW_COLFAM);
+        } else if (ret == skipColumn) {
+            return k.followingKey(PartialKey.ROW_COLFAM_COLQUAL_COLVIS);
+        }
+
+        return null;
+    }
+
+    private void seekSource(Key start) throws IOException {
+        if (range.afterEndKey(start)) {
+            exhausted = true;
+            return;
+        }
+
+        Range skipped = new Range(start, true, range.getEndKey(), range.isEndKeyInclusive());
+        getSource().seek(skipped, columnFamilies, inclusive);
+    }
+
+    /**
+     * @return true if k's row is in the row set; if not, the source has been
+     * sought to the next row that is, or the filter is exhausted
+     */
+    private boolean inRowSet(Key k) throws IOException {
+        ByteSequence row = k.getRowData();
+        if (rowIndex >= 0 && rowSet.matches(rowIndex, row)) {
+            return true;
+        }
+
+        int i = rowSet.find(row);
+        if (i >= 0) {
+            rowIndex = i;
+            return true;
+        }
+
+        int next = -i - 1;
+        if (next == rowSet.size()) {
+            exhausted = true;
+        } else {
+            seekSource(new Key(new Text(rowSet.get(next))));
+        }
+        return false;
+    }
+
+    @Override
+    protected void findTop() {
+        try {
+            boolean yielding = yieldCallback != null && yieldAfter > 0;
+            Key examined = null;
+            long count = 0;
+
+            while (!exhausted && getSource().hasTop() && !getSource().getTopKey().isDeleted()) {
+                if (yielding && count >= yieldAfter) {
+                    yieldCallback.yield(examined);
+                    exhausted = true;
+                    return;
+                }
+
+                Key k = getSource().getTopKey();
+                if (yielding) {
+                    examined = new Key(k);
+                    count++;
+                }
+
+                if (rowSet != null && !inRowSet(k)) {
+                    continue;
+                }
+
+                if (selection != null && !selection.selects(k)) {
+                    if (!selection.dropsOthers()) {
+                        return;
+                    }
+                    getSource().next();
+                    continue;
+                }
+
+                Object ret = invoke(k, getSource().getTopValue());
+
+                if (ret == dropped) {
+                    getSource().next();
+                    continue;
+                }
+
+                Key start = skipTo(k, ret);
+                if (start != null && start.compareTo(k) > 0) {
+                    seekSource(start);
+                    continue;
+                }
+
+                if (start == null && RT.booleanCast(ret) != negate) {
+                    stats.emitted();
+                    return;
+                }
+
+                getSource().next();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean hasTop() {
+        return !exhausted && super.hasTop();
+    }
+
+    @Override
+    public void next() throws IOException {
+        super.next();
+
+        if (!hasTop() && !yielded()) {
+            stats.finish();
+        }
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        stats.flush();
+        if (budget != null) {
+            budget.reset();
+        }
+
+        this.exhausted = false;
+        this.rowIndex = -1;
+        if (functionState != null) {
+            functionState.reset();
+        }
+        if (selection != null) {
+            Collection<ByteSequence> families = selection.seekFamilies(columnFamilies, inclusive);
+            if (families != columnFamilies) {
+                // Seeking inclusively with no families would read every row
+                // for nothing.
+                exhausted = families.isEmpty();
+                columnFamilies = families;
+                inclusive = true;
+            }
+        }
+
+        this.range = range;
+        this.columnFamilies = columnFamilies;
+        this.inclusive = inclusive;
+        if (!exhausted) {
+            super.seek(range, columnFamilies, inclusive);
+        }
+
+        if (!hasTop() && !yielded()) {
+            stats.finish();
+        }
+    }
+
+    private boolean yielded() {
+        return yieldCallback != null && yieldCallback.hasYielded();
     }
 
     @Override
     public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
         super.init(source, options, env);
-        
-        if (options == null) {
-            throw new IllegalArgumentException(fnOption + " must be set for ClojureFilter");
-        }
-        
-        String fnString = options.get(fnOption);
-        if (fnString == null) {
-            throw new IllegalArgumentException(fnOption + " must be set for ClojureFilter");
+
+        long start = System.nanoTime();
+        rowSet = RowSet.create(options);
+        String statsOption = fnOption;
+        if (rowSet == null || ClojureIteratorUtils.hasFn(options, fnOption)) {
+            fn = ClojureIteratorUtils.getFn(options, fnOption, "ClojureFilter");
+        } else {
+            statsOption = options.containsKey(RowSet.rowsOption) ? RowSet.rowsOption : RowSet.rowPrefixesOption;
         }
+        stats = IteratorStats.create("ClojureFilter", options, statsOption, System.nanoTime() - start);
+        budget = FunctionBudget.create("ClojureFilter", options);
+        selection = ColumnSelection.create(options);
+        functionState = FunctionState.create("ClojureFilter", options);
+        view = Boolean.parseBoolean(options.get(viewOption)) ? new KeyValueView() : null;
+        negate = Boolean.parseBoolean(options.get(negateOption));
 
-        Object obj = ClojureIteratorUtils.eval(fnString);
-        if (!(obj instanceof IFn)) {
-            throw new IllegalArgumentException(fnOption + " must compile to something that implements IFn");
+        String yieldAfterString = options.get(yieldAfterOption);
+        if (yieldAfterString != null) {
+            yieldAfter = Long.parseLong(yieldAfterString);
+            if (yieldAfter < 1) {
+                throw new IllegalArgumentException(yieldAfterOption + " must be positive");
+            }
         }
+    }
 
-        fn = (IFn) obj;
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        ClojureFilter copy = new ClojureFilter();
+        copy.setSource(getSource().deepCopy(env));
+        copy.fn = fn;
+        copy.view = (view == null) ? null : new KeyValueView();
+        copy.stats = stats.copy();
+        copy.budget = (budget == null) ? null : budget.copy();
+        copy.selection = selection;
+        copy.rowSet = rowSet;
+        copy.functionState = (functionState == null) ? null : functionState.copy();
+        copy.negate = negate;
+        copy.yieldAfter = yieldAfter;
+        return copy;
     }
 
     @Override
     public IteratorOptions describeOptions() {
         IteratorOptions io =  super.describeOptions();
-        
-        io.addNamedOption(fnOption, "String containing filter predicate function");
+
+        io.addNamedOption(fnOption, "String containing filter predicate function, optional if rows or rowPrefixes is set");
+        io.addNamedOption(RowSet.rowsOption, "Optional encoded set of rows to accept entries from, written by setRows");
+        io.addNamedOption(RowSet.rowPrefixesOption, "Optional encoded set of row prefixes to accept entries from, written by setRowPrefixes");
+        io.addNamedOption(viewOption, "Optional boolean, pass pred a reused KeyValueView instead of a copied KeyValue");
+        io.addNamedOption(IteratorStats.logMetricsOption, "Optional boolean, log the metrics of each scan when it ends");
+        io.addNamedOption(yieldAfterOption, "Optional number of entries rejected in a row before yielding, if yielding is enabled");
+        for (Map.Entry<String, String> e : FunctionBudget.describeOptions().entrySet()) {
+            if (!e.getKey().equals(FunctionBudget.maxValueBytesOption)) {
+                io.addNamedOption(e.getKey(), e.getValue());
+            }
+        }
+        for (Map.Entry<String, String> e : ColumnSelection.describeOptions().entrySet()) {
+            io.addNamedOption(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : FunctionState.describeOptions().entrySet()) {
+            io.addNamedOption(e.getKey(), e.getValue());
+        }
         io.setName("cljfilter");
         io.setDescription("ClojureFilter allows a Clojure function to be passed in and invoked as the Filter's accept method");
-        
+
         return io;
     }
 }
@@ -0,0 +1,204 @@
+package clojure_accumulo.iterators;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide cache of evaluated Clojure source.
+ *
+ * A tablet server calls init on an iterator for every tablet, every scan
+ * batch and every deepCopy, and each of those would otherwise compile the
+ * same option string again.  Entries are keyed by a SHA-1 hash of the source
+ * and evicted in least-recently-used order once the cache holds more than
+ * its maximum size, which is read from the clojure_accumulo.cache.size
+ * system property.
+ *
+ * Source is compiled by ClojureEvaluator.  Threads that miss on a source
+ * that is already being compiled wait for that compile rather than starting
+ * another, and a compile that fails in any way, including with an Error
+ * such as NoClassDefFoundError, is dropped so that the next get retries it.
+ * One that only timed out is kept, as it is still running.
+ *
+ * Because results are shared between iterator instances, the evaluated
+ * source should produce something immutable, which functions and Clojure
+ * data are.
+ */
+public final class ClojureFunctionCache {
+    private static final String maxSizeProperty = "clojure_accumulo.cache.size";
+    private static final int defaultMaxSize = 256;
+    private static final ClojureFunctionCache instance =
+            new ClojureFunctionCache(Integer.getInteger(maxSizeProperty, defaultMaxSize), ClojureEvaluator.getInstance());
+
+    private final int maxSize;
+    private final ClojureEvaluator evaluator;
+    private final Map<String, Future<Object>> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong compileNanos = new AtomicLong();
+
+    ClojureFunctionCache(int maxSize) {
+        this(maxSize, ClojureEvaluator.getInstance());
+    }
+
+    ClojureFunctionCache(int maxSize, ClojureEvaluator evaluator) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("cache size must be positive");
+        }
+
+        this.maxSize = maxSize;
+        this.evaluator = evaluator;
+        this.entries = new LinkedHashMap<String, Future<Object>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Future<Object>> eldest) {
+                if (size() > ClojureFunctionCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the cache shared by every iterator in this process
+     */
+    public static ClojureFunctionCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Hash a string of Clojure into the key used by the cache.
+     *
+     * @param str some Clojure
+     * @return hex-encoded SHA-1 of the UTF-8 bytes of str
+     */
+    public static String hash(String str) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(str.getBytes("UTF-8"));
+
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Return the result of evaluating str, compiling it only if it is not
+     * already cached or being compiled.
+     *
+     * @param str some Clojure
+     * @return last evaluated expression
+     * @throws IllegalArgumentException if str does not compile
+     * @throws IllegalStateException if compiling takes longer than the
+     * evaluator's timeout
+     */
+    public Object get(final String str) {
+        String key = hash(str);
+
+        FutureTask<Object> task = null;
+        Future<Object> future;
+        synchronized (entries) {
+            future = entries.get(key);
+            if (future == null) {
+                task = new FutureTask<Object>(new Callable<Object>() {
+                    public Object call() {
+                        long start = System.nanoTime();
+                        try {
+                            return ClojureIteratorUtils.load(str);
+                        } finally {
+                            compileNanos.addAndGet(System.nanoTime() - start);
+                        }
+                    }
+                });
+                future = task;
+                entries.put(key, future);
+            }
+        }
+
+        if (task != null) {
+            misses.incrementAndGet();
+            evaluator.execute(task);
+        } else {
+            hits.incrementAndGet();
+        }
+
+        try {
+            return evaluator.get(future, "compiling " + key);
+        } catch (RuntimeException e) {
+            removeFailed(key, future);
+            throw e;
+        } catch (Error e) {
+            removeFailed(key, future);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop a compile that failed, however it failed, so that the next get
+     * retries it.  One that timed out is still running and is kept.
+     */
+    private void removeFailed(String key, Future<Object> future) {
+        if (!future.isDone()) {
+            return;
+        }
+        synchronized (entries) {
+            if (entries.get(key) == future) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drop every cached entry.  Statistics are kept.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return total time spent compiling on cache misses, in nanoseconds
+     */
+    public long getCompileNanos() {
+        return compileNanos.get();
+    }
+}
@@ -0,0 +1,288 @@
+package clojure_accumulo.iterators;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import clojure.lang.IFn;
+import clojure.lang.Util;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.KeyValue;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.OptionDescriber;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+
+/**
+ * Reduces groups of neighbouring entries, rather than just the versions of a
+ * single key as ClojureCombiner does, and emits one entry per group.
+ *
+ * The group option says what a group is:
+ *
+ * row        every entry in a row (the default)
+ * family     every entry in a column family of a row
+ *
+ * Alternatively, the groupFn option is a function of a Key, and consecutive
+ * entries of a row for which it returns equal values form a group.
+ *
+ * f is a reducing function of the accumulator and a KeyValue, starting from
+ * val, or from (f) if val is not given, and complete, if given, is applied to
+ * the final accumulator.  For example, with val 0,
+ *
+ * (fn [acc [k v]] (+ acc (Long/parseLong (String. (.get v)))))
+ *
+ * sums the values of each group.  If f returns a Reduced, the rest of the
+ * group is skipped.
+ *
+ * Each result is emitted under the key of the first entry of its group, and
+ * a group is only emitted if that key is in the range being scanned.  To
+ * see whole groups the iterator reads from the start of the group holding
+ * the start of the range (the row, for groupFn) to the end of the group
+ * holding its end, so a scan resumed just after an emitted key picks up at
+ * the next group.  Deleted keys are not reduced, and a group of nothing but
+ * deleted keys is not emitted, so this iterator belongs at scan scope.
+ *
+ * If the partial option is true, complete is skipped and each accumulator
+ * is written with ValueEncoding.BINARY, for PartialAggregates to merge
+ * across tablets with the combine option.
+ *
+ * Results other than Values are written with the encoding named by the
+ * encoding option (see ValueEncoding), EDN by default.
+ *
+ * If the view option is true, f is passed a reused KeyValueView instead of a
+ * freshly copied KeyValue, and must not hold on to it.
+ *
+ * Entries read, results emitted and the time spent in f and in encoding its
+ * results are recorded in the FunctionMetrics for f, and logged when the scan
+ * ends if logMetrics is true.
+ */
+public final class ClojureGroupReducer extends WrappingIterator implements OptionDescriber {
+    private static final String fnOption = "f";
+    private static final String valOption = "val";
+    private static final String completeOption = "complete";
+    private static final String groupOption = "group";
+    private static final String groupFnOption = "groupFn";
+    private static final String viewOption = "view";
+    private IFn fn;
+    private IFn complete;
+    private IFn groupFn;
+    private Object val;
+    private boolean partial;
+    private PartialKey group = PartialKey.ROW;
+    private KeyValueView view;
+    private ValueEncoding encoding = ValueEncoding.EDN;
+    private IteratorStats stats;
+    private Range range;
+    private Range readRange;
+    private Collection<ByteSequence> columnFamilies;
+    private boolean inclusive;
+    private boolean exhausted;
+    private Key key;
+    private Value value;
+
+    private boolean sameGroup(Key first, Object firstGroup, Key k) {
+        if (!k.equals(first, group)) {
+            return false;
+        }
+        return groupFn == null || Util.equiv(firstGroup, groupFn.invoke(k));
+    }
+
+    /**
+     * Seek the source past the rest of the group starting at first.
+     */
+    private void skipGroup(Key first) throws IOException {
+        Key start = first.followingKey(group);
+        if (readRange.afterEndKey(start)) {
+            exhausted = true;
+        } else {
+            getSource().seek(new Range(start, true, readRange.getEndKey(), readRange.isEndKeyInclusive()), columnFamilies, inclusive);
+        }
+    }
+
+    /**
+     * Reduce groups until one is in the range, or the source runs out.
+     */
+    private void findTop() throws IOException {
+        key = null;
+        value = null;
+
+        while (key == null && !exhausted && getSource().hasTop()) {
+            Key first = new Key(getSource().getTopKey());
+            Object firstGroup = (groupFn == null) ? null : groupFn.invoke(first);
+            Object acc = (val == null) ? fn.invoke() : val;
+            boolean reduced = false;
+            boolean any = false;
+
+            do {
+                Key k = getSource().getTopKey();
+                if (!k.isDeleted()) {
+                    stats.read();
+                    any = true;
+
+                    Object kv = (view == null) ? new KeyValue(k, getSource().getTopValue().get()) : view.set(k, getSource().getTopValue());
+                    long start = stats.startInvoke();
+                    acc = fn.invoke(acc, kv);
+                    stats.endInvoke(start);
+
+                    if (Reduced.isReduced(acc)) {
+                        acc = Reduced.unwrap(acc);
+                        reduced = true;
+                    }
+                }
+
+                if (reduced && groupFn == null) {
+                    skipGroup(first);
+                    break;
+                }
+                getSource().next();
+            } while (!reduced && getSource().hasTop() && sameGroup(first, firstGroup, getSource().getTopKey()));
+
+            // A custom group cannot be sought past, so read out the rest.
+            while (reduced && groupFn != null && getSource().hasTop() &&
+                    sameGroup(first, firstGroup, getSource().getTopKey())) {
+                getSource().next();
+            }
+
+            if (!any || !range.contains(first)) {
+                continue;
+            }
+
+            if (complete != null && !partial) {
+                acc = complete.invoke(acc);
+            }
+
+            long start = stats.startEncode();
+            value = encoding.toValue(acc);
+            stats.endEncode(start);
+            key = first;
+            stats.emitted();
+        }
+
+        if (key == null) {
+            stats.finish();
+        }
+    }
+
+    @Override
+    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
+        super.init(source, options, env);
+
+        long start = System.nanoTime();
+        fn = ClojureIteratorUtils.getFn(options, fnOption, "ClojureGroupReducer");
+        if (ClojureIteratorUtils.hasFn(options, completeOption)) {
+            complete = ClojureIteratorUtils.getFn(options, completeOption, "ClojureGroupReducer");
+        }
+        if (ClojureIteratorUtils.hasFn(options, groupFnOption)) {
+            if (options.containsKey(groupOption)) {
+                throw new IllegalArgumentException(groupOption + " and " + groupFnOption + " cannot both be set for ClojureGroupReducer");
+            }
+            groupFn = ClojureIteratorUtils.getFn(options, groupFnOption, "ClojureGroupReducer");
+        }
+        stats = IteratorStats.create("ClojureGroupReducer", options, fnOption, System.nanoTime() - start);
+
+        String groupString = options.get(groupOption);
+        if (groupString == null || groupString.equals("row")) {
+            group = PartialKey.ROW;
+        } else if (groupString.equals("family")) {
+            group = PartialKey.ROW_COLFAM;
+        } else {
+            throw new IllegalArgumentException(groupOption + " must be row or family");
+        }
+
+        String valString = options.get(valOption);
+        if (valString != null) {
+            val = ClojureIteratorUtils.eval(valString);
+        }
+
+        view = Boolean.parseBoolean(options.get(viewOption)) ? new KeyValueView() : null;
+        partial = PartialAggregates.isPartial(options);
+        encoding = partial ? ValueEncoding.BINARY : ClojureIteratorUtils.getEncoding(options);
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        ClojureGroupReducer copy = new ClojureGroupReducer();
+        copy.setSource(getSource().deepCopy(env));
+        copy.fn = fn;
+        copy.complete = complete;
+        copy.groupFn = groupFn;
+        copy.val = val;
+        copy.partial = partial;
+        copy.group = group;
+        copy.view = (view == null) ? null : new KeyValueView();
+        copy.encoding = encoding;
+        copy.stats = stats.copy();
+        return copy;
+    }
+
+    @Override
+    public boolean hasTop() {
+        return key != null;
+    }
+
+    @Override
+    public Key getTopKey() {
+        return key;
+    }
+
+    @Override
+    public Value getTopValue() {
+        return value;
+    }
+
+    @Override
+    public void next() throws IOException {
+        findTop();
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        stats.flush();
+
+        // Read whole groups at both ends of the range.
+        Key start = null;
+        if (range.getStartKey() != null) {
+            Key k = range.getStartKey();
+            start = (group == PartialKey.ROW) ? new Key(k.getRow()) : new Key(k.getRow(), k.getColumnFamily());
+        }
+        Key end = (range.getEndKey() == null) ? null : range.getEndKey().followingKey(group);
+
+        this.range = range;
+        this.readRange = new Range(start, true, end, false);
+        this.columnFamilies = columnFamilies;
+        this.inclusive = inclusive;
+        this.exhausted = false;
+        super.seek(readRange, columnFamilies, inclusive);
+
+        findTop();
+    }
+
+    public IteratorOptions describeOptions() {
+        Map<String, String> namedOptions = new HashMap<String, String>();
+        namedOptions.put(fnOption, "String containing reducing function of an accumulator and a KeyValue");
+        namedOptions.put(valOption, "Optional string containing initial reduce value");
+        namedOptions.put(completeOption, "Optional string containing a function of the final accumulator returning the result");
+        namedOptions.put(groupOption, "Optional row or family, the entries reduced together (default row)");
+        namedOptions.put(groupFnOption, "Optional string containing a function of a Key; consecutive entries of a row with equal results are reduced together");
+        namedOptions.put(PartialAggregates.partialOption, "Optional boolean, skip complete and write binary partial results for PartialAggregates");
+        namedOptions.put(PartialAggregates.combineOption, "Optional string containing a function merging two partial results, used by PartialAggregates");
+        namedOptions.put(viewOption, "Optional boolean, pass f a reused KeyValueView instead of a copied KeyValue");
+        namedOptions.put(ClojureIteratorUtils.encodingOption, "Optional encoding of results: edn, binary, raw-long or raw-utf8");
+        namedOptions.put(IteratorStats.logMetricsOption, "Optional boolean, log the metrics of each scan when it ends");
+
+        return new IteratorOptions("cljgroupreducer",
+                "ClojureGroupReducer allows a Clojure function to reduce each row, column family or custom group of entries to one",
+                namedOptions,
+                Collections.<String>emptyList());
+    }
+
+    public boolean validateOptions(Map<String, String> options) {
+        return ClojureIteratorUtils.hasFn(options, fnOption);
+    }
+}
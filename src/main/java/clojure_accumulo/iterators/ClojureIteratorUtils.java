@@ -1,17 +1,34 @@
 package clojure_accumulo.iterators;
 
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import clojure.lang.Compiler;
+import clojure.lang.IFn;
+import clojure.lang.Namespace;
 import clojure.lang.RT;
+import clojure.lang.Symbol;
 import clojure.lang.Var;
+import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.start.classloader.AccumuloClassLoader;
 
 public class ClojureIteratorUtils {
 
+    /**
+     * Name of the option that selects a ValueEncoding for an iterator's output.
+     */
+    public static final String encodingOption = "encoding";
+
+    /**
+     * Suffix of the option that names a var holding a function, such as
+     * pred-ref, used instead of the option holding the function's source.
+     */
+    public static final String refSuffix = "-ref";
+
+    private static final Var require = RT.var("clojure.core", "require");
+
     /**
      * Return an object as a Value.
      *
@@ -22,49 +39,182 @@ public class ClojureIteratorUtils {
      * @return object as a Value
      */
     public static Value toValue(Object obj) {
-        if (obj instanceof Value) {
-            return (Value) obj;
-        } else {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            OutputStreamWriter writer = new OutputStreamWriter(baos);
+        return ValueEncoding.EDN.toValue(obj);
+    }
 
-            try {
-                RT.print(obj, writer);
-                writer.close();
-            } catch (Exception e) {
-                // I can't get Util.sneakyThrow to resolve for some reason
-                throw new RuntimeException(e);
+    /**
+     * Read the encoding option, defaulting to EDN.
+     *
+     * @param options iterator options
+     * @return the selected encoding
+     */
+    public static ValueEncoding getEncoding(Map<String, String> options) {
+        String encodingString = (options == null) ? null : options.get(encodingOption);
+        return (encodingString == null) ? ValueEncoding.EDN : ValueEncoding.forOptionValue(encodingString);
+    }
+
+    /**
+     * Select how an iterator encodes the results of its Clojure function.
+     *
+     * @param is iterator setting to configure
+     * @param encoding the encoding to use
+     */
+    public static void setEncoding(IteratorSetting is, ValueEncoding encoding) {
+        is.addOption(encodingOption, encoding.getOptionValue());
+    }
+
+    /**
+     * @param options iterator options
+     * @param option name of the option holding the function source
+     * @return true if either the option or its -ref variant is set
+     */
+    public static boolean hasFn(Map<String, String> options, String option) {
+        return (options != null) && (options.get(option) != null || options.get(option + refSuffix) != null);
+    }
+
+    /**
+     * Identify the function an iterator was given, for metrics: its source,
+     * or the name of the var it refers to.
+     */
+    static String getFnIdentity(Map<String, String> options, String option) {
+        String fnString = options.get(option);
+        return (fnString != null) ? fnString : options.get(option + refSuffix);
+    }
+
+    /**
+     * Evaluate a required option as a Clojure function.
+     *
+     * Instead of the option itself, the option with refSuffix appended may
+     * name a var holding the function, as in pred-ref=my.ns/keep?, so that a
+     * function compiled ahead of time into a jar in lib/ext is looked up
+     * rather than compiled again.
+     *
+     * @param options iterator options
+     * @param option name of the option holding the function source
+     * @param iteratorName name of the iterator, for error messages
+     * @return the compiled function
+     * @throws IllegalArgumentException if the option is missing or does not
+     * compile to an IFn
+     */
+    public static IFn getFn(Map<String, String> options, String option, String iteratorName) {
+        String fnString = (options == null) ? null : options.get(option);
+        String ref = (options == null) ? null : options.get(option + refSuffix);
+        if (fnString == null && ref == null) {
+            throw new IllegalArgumentException(option + " or " + option + refSuffix + " must be set for " + iteratorName);
+        }
+        if (fnString != null && ref != null) {
+            throw new IllegalArgumentException(option + " and " + option + refSuffix + " cannot both be set for " + iteratorName);
+        }
+
+        if (ref != null) {
+            Object obj = resolve(ref);
+            if (!(obj instanceof IFn)) {
+                throw new IllegalArgumentException(option + refSuffix + " must name a var holding something that implements IFn");
             }
+            return (IFn) obj;
+        }
+
+        Object obj = eval(fnString);
+        if (!(obj instanceof IFn)) {
+            throw new IllegalArgumentException(option + " must compile to something that implements IFn");
+        }
+
+        return (IFn) obj;
+    }
+
+    /**
+     * Look up the value of a var, loading its namespace first if needed.
+     *
+     * The namespace is loaded through Accumulo's class loader, so an AOT
+     * compiled namespace in lib/ext is loaded from its classes rather than
+     * compiled.
+     *
+     * @param ref namespace-qualified var name, like my.ns/my-fn
+     * @return the value of the var
+     * @throws IllegalArgumentException if ref is not qualified, its namespace
+     * cannot be loaded, or the var does not exist or is unbound
+     */
+    public static Object resolve(String ref) {
+        Symbol sym = Symbol.intern(ref);
+        if (sym.getNamespace() == null) {
+            throw new IllegalArgumentException(ref + " must be namespace-qualified, like my.ns/my-fn");
+        }
+
+        final Symbol nsName = Symbol.intern(sym.getNamespace());
+        if (Namespace.find(nsName) == null) {
+            ClojureEvaluator.getInstance().call(new Callable<Object>() {
+                public Object call() {
+                    return withAccumuloClassLoader(new Callable<Object>() {
+                        public Object call() {
+                            return require.invoke(nsName);
+                        }
+                    });
+                }
+            }, "loading " + nsName);
+        }
 
-            return new Value(baos.toByteArray());
+        Var var = Namespace.find(nsName).findInternedVar(Symbol.intern(sym.getName()));
+        if (var == null || !var.isBound()) {
+            throw new IllegalArgumentException(ref + " is not a bound var");
         }
+
+        return var.deref();
     }
 
     /**
      * Evaluate a string of Clojure, returning the last evaluated expression.
      *
+     * The result is cached process-wide by ClojureFunctionCache, so evaluating
+     * the same string again returns the same object without recompiling.
+     *
      * @param str some Clojure
      * @return last evaluated expression.
      */
     public static Object eval(String str) {
-        Object ret;
+        return ClojureFunctionCache.getInstance().get(str);
+    }
+
+    /**
+     * Compile and evaluate a string of Clojure in the calling thread,
+     * bypassing the cache.
+     *
+     * @param str some Clojure
+     * @return last evaluated expression.
+     */
+    static Object load(final String str) {
+        return withAccumuloClassLoader(new Callable<Object>() {
+            public Object call() {
+                // Actually compile the given code.
+                return Compiler.load(new StringReader(str));
+            }
+        });
+    }
+
+    /**
+     * Call something with Accumulo's class loader as the context class
+     * loader, and Clojure told to use it, so we get Hadoop, Accumulo, and
+     * whatever is in lib/ext.  The thread's own class loader is restored
+     * afterwards.
+     */
+    private static Object withAccumuloClassLoader(Callable<Object> callable) {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
 
         try {
-            // Set the class loader to use Accumulo's so we get Hadoop,
-            // Accumulo, and whatever is in lib/ext.
-            Thread.currentThread().setContextClassLoader(AccumuloClassLoader.getClassLoader());
+            thread.setContextClassLoader(AccumuloClassLoader.getClassLoader());
             Var.pushThreadBindings(RT.map(
                     RT.USE_CONTEXT_CLASSLOADER, RT.T
             ));
 
-            // Actually compile the given code.
-            ret = Compiler.load(new StringReader(str));
+            try {
+                return callable.call();
+            } finally {
+                Var.popThreadBindings();
+            }
         } catch (Exception e) {
             throw new IllegalArgumentException(e);
         } finally {
-            Var.popThreadBindings();
+            thread.setContextClassLoader(previous);
         }
-
-        return ret;
     }
 }
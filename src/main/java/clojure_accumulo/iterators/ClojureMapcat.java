@@ -0,0 +1,249 @@
+package clojure_accumulo.iterators;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.KeyValue;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.OptionDescriber;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Basically, a server-side implementation of "mapcat".
+ *
+ * The mapping function f returns a seq of zero or more results for each
+ * entry.  As with ClojureMapper, a result that is a two-element vector whose
+ * first element is a Key is used as the key and value, and any other result
+ * is used as a value for the original key.  Returning nil or an empty seq
+ * drops the entry.
+ *
+ * For example,
+ *
+ * (fn [[k v]]
+ *   (for [part (clojure.string/split (String. (.get v)) #",")]
+ *     [(Key. (.getRow k) (.getColumnFamily k) (Text. part)) 1]))
+ *
+ * explodes a comma-separated value into one cell per part.
+ *
+ * Results must stay in the row of the entry that produced them, but may come
+ * in any order within it.  They are collected in a sorted buffer and emitted
+ * in key order when the source moves on to the next row, or earlier once the
+ * buffer holds bufferSize entries, after which a result that sorts before one
+ * already emitted is an error.  Results with equal keys keep only the last.
+ *
+ * To keep seek correct, the iterator reads whole rows from its source, so a
+ * range that starts or ends part way through a row reads the rest of that
+ * row, and results outside the range are dropped.
+ *
+ * Results other than Values are written with the encoding named by the
+ * encoding option (see ValueEncoding), EDN by default.
+ *
+ * If the view option is true, f is passed a reused KeyValueView instead of a
+ * freshly copied KeyValue, and must not hold on to it.
+ *
+ * Entries read, results emitted and the time spent in f and in encoding its
+ * results are recorded in the FunctionMetrics for f, and logged when the scan
+ * ends if logMetrics is true.
+ */
+public final class ClojureMapcat extends WrappingIterator implements OptionDescriber {
+    private static final String fnOption = "f";
+    private static final String viewOption = "view";
+    private static final String bufferSizeOption = "bufferSize";
+    private static final int defaultBufferSize = 10000;
+    private IFn fn;
+    private KeyValueView view;
+    private ValueEncoding encoding = ValueEncoding.EDN;
+    private int bufferSize = defaultBufferSize;
+    private IteratorStats stats;
+    private Range range;
+    private final TreeMap<Key, Value> buffer = new TreeMap<Key, Value>();
+    private final Text row = new Text();
+    private Key lastEmitted;
+    private Key key;
+    private Value value;
+
+    private void add(Key k, Value v) {
+        if (k.compareRow(row) != 0) {
+            throw new IllegalStateException("ClojureMapcat results must stay in row " + row + ", not " + k.getRow());
+        }
+        if (lastEmitted != null && k.compareTo(lastEmitted) <= 0) {
+            throw new IllegalStateException("ClojureMapcat result " + k + " sorts before " + lastEmitted +
+                    ", which was already emitted; raise " + bufferSizeOption);
+        }
+
+        if (range.contains(k)) {
+            buffer.put(k, v);
+        }
+    }
+
+    private void doMapcat() {
+        Key k = getSource().getTopKey();
+        Value v = getSource().getTopValue();
+
+        stats.read();
+
+        Object kv = (view == null) ? new KeyValue(k, v.get()) : view.set(k, v);
+        long start = stats.startInvoke();
+        Object ret = fn.invoke(kv);
+        stats.endInvoke(start);
+
+        start = stats.startEncode();
+        for (ISeq s = RT.seq(ret); s != null; s = s.next()) {
+            Object result = s.first();
+
+            Key outKey = k;
+            Object outValue = result;
+            if (result instanceof IPersistentCollection &&
+                    RT.count(result) == 2 &&
+                    RT.first(result) instanceof Key) {
+                outKey = (Key) RT.first(result);
+                outValue = RT.second(result);
+            }
+
+            // The source reuses its key and value, so copy them if they are
+            // passed straight through.
+            if (outKey == k) {
+                outKey = new Key(k);
+            }
+            if (outValue instanceof Value) {
+                add(outKey, new Value(((Value) outValue).get(), true));
+            } else {
+                add(outKey, encoding.toValue(outValue));
+            }
+        }
+        stats.endEncode(start);
+    }
+
+    /**
+     * Fill the buffer from the source, a row at a time, until it has
+     * something to emit or the source runs out, and take its first entry.
+     */
+    private void findTop() throws IOException {
+        while (buffer.isEmpty() && getSource().hasTop()) {
+            if (getSource().getTopKey().compareRow(row) != 0) {
+                getSource().getTopKey().getRow(row);
+                lastEmitted = null;
+            }
+
+            do {
+                doMapcat();
+                getSource().next();
+            } while (getSource().hasTop() && buffer.size() < bufferSize && getSource().getTopKey().compareRow(row) == 0);
+        }
+
+        if (buffer.isEmpty()) {
+            key = null;
+            value = null;
+            stats.finish();
+            return;
+        }
+
+        Map.Entry<Key, Value> first = buffer.pollFirstEntry();
+        key = first.getKey();
+        value = first.getValue();
+        lastEmitted = key;
+        stats.emitted();
+    }
+
+    @Override
+    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
+        super.init(source, options, env);
+
+        long start = System.nanoTime();
+        fn = ClojureIteratorUtils.getFn(options, fnOption, "ClojureMapcat");
+        stats = IteratorStats.create("ClojureMapcat", options, fnOption, System.nanoTime() - start);
+        view = Boolean.parseBoolean(options.get(viewOption)) ? new KeyValueView() : null;
+        encoding = ClojureIteratorUtils.getEncoding(options);
+
+        String bufferSizeString = options.get(bufferSizeOption);
+        if (bufferSizeString != null) {
+            bufferSize = Integer.parseInt(bufferSizeString);
+            if (bufferSize < 1) {
+                throw new IllegalArgumentException(bufferSizeOption + " must be positive");
+            }
+        }
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        ClojureMapcat copy = new ClojureMapcat();
+        copy.setSource(getSource().deepCopy(env));
+        copy.fn = fn;
+        copy.view = (view == null) ? null : new KeyValueView();
+        copy.encoding = encoding;
+        copy.bufferSize = bufferSize;
+        copy.stats = stats.copy();
+        return copy;
+    }
+
+    @Override
+    public boolean hasTop() {
+        return key != null;
+    }
+
+    @Override
+    public Key getTopKey() {
+        return key;
+    }
+
+    @Override
+    public Value getTopValue() {
+        return value;
+    }
+
+    @Override
+    public void next() throws IOException {
+        findTop();
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        stats.flush();
+
+        this.range = range;
+        buffer.clear();
+        row.clear();
+        lastEmitted = null;
+
+        // Entries anywhere in the first and last rows can produce results
+        // inside the range, so read those rows whole.
+        Key start = (range.getStartKey() == null) ? null : new Key(range.getStartKey().getRow());
+        Key end = (range.getEndKey() == null) ? null : range.getEndKey().followingKey(PartialKey.ROW);
+        super.seek(new Range(start, true, end, false), columnFamilies, inclusive);
+
+        findTop();
+    }
+
+    public IteratorOptions describeOptions() {
+        Map<String, String> namedOptions = new HashMap<String, String>();
+        namedOptions.put(fnOption, "String containing mapcat function returning a seq of results");
+        namedOptions.put(viewOption, "Optional boolean, pass f a reused KeyValueView instead of a copied KeyValue");
+        namedOptions.put(bufferSizeOption, "Optional number of results of a row buffered before emitting (default " + defaultBufferSize + ")");
+        namedOptions.put(ClojureIteratorUtils.encodingOption, "Optional encoding of results: edn, binary, raw-long or raw-utf8");
+        namedOptions.put(IteratorStats.logMetricsOption, "Optional boolean, log the metrics of each scan when it ends");
+
+        return new IteratorOptions("cljmapcat",
+                "ClojureMapcat allows a Clojure function to be passed in and invoked on every key-value pair, producing zero or more pairs",
+                namedOptions,
+                Collections.<String>emptyList());
+    }
+
+    public boolean validateOptions(Map<String, String> options) {
+        return ClojureIteratorUtils.hasFn(options, fnOption);
+    }
+}
@@ -3,7 +3,9 @@ package clojure_accumulo.iterators;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import clojure.lang.IFn;
 import clojure.lang.IPersistentCollection;
@@ -38,28 +40,311 @@ import org.apache.accumulo.core.iterators.WrappingIterator;
  *   1)
  *
  * will retain the original key k and return "1" from the iterator as the value.
+ *
+ * Instead of f, the mapper may be given keyFn, returning the new Key of an
+ * entry, and valueFn, returning its new value, either of which keeps what
+ * the entry had if it is left out.  Each runs only when its part of the
+ * entry is asked for, so an iterator above that only looks at keys never
+ * runs valueFn or encodes its result, and without keyFn the keys are passed
+ * through untouched and never checked for order.
+ *
+ * Iterators above the mapper, and the tablet server itself, rely on keys
+ * coming out in sorted order.  The order option says how the mapper makes
+ * sure of that when f rewrites keys:
+ *
+ * preserving   trust that f keeps keys in order, and check nothing (the
+ *              default)
+ * check        fail with an IllegalStateException as soon as a key sorts
+ *              before the one emitted before it
+ * sort         map up to windowSize entries ahead (default 1000) and emit
+ *              them in key order, failing only if a result sorts before one
+ *              already emitted; results with equal keys keep only the last
+ *
+ * The families, qualifierPrefixes and others options select the columns f
+ * is invoked on (see ColumnSelection).  Entries in other columns are passed
+ * through untouched, or with others set to drop, skipped; then the mapper
+ * seeks its source with only the selected families.
+ *
+ * The setup and rowFn options pass f, keyFn and valueFn the result of a
+ * function run once at init, and of one run once per row, as further
+ * arguments (see FunctionState).
+ *
+ * Results other than Values are written with the encoding named by the
+ * encoding option (see ValueEncoding), EDN by default.
+ *
+ * If the view option is true, f is passed a reused KeyValueView instead of a
+ * freshly copied KeyValue, and must not hold on to it.
+ *
+ * The maxInvokeMillis, maxBatchMillis, maxBatchBytes, maxValueBytes and
+ * budgetPolicy options limit what f may cost (see FunctionBudget).  With any
+ * of them set, entries are mapped as the iterator advances rather than when
+ * they are asked for, so that under the drop policy an entry that takes too
+ * long or whose result is too big can be skipped.  Passing a batch limit
+ * always fails the scan.
+ *
+ * Entries mapped and the time spent in f and in encoding its results are
+ * recorded in the FunctionMetrics for f, and logged when the scan ends if
+ * logMetrics is true.
  */
 public final class ClojureMapper extends WrappingIterator implements OptionDescriber {
     private static final String fnOption = "f";
+    private static final String keyFnOption = "keyFn";
+    private static final String valueFnOption = "valueFn";
+    private static final Object dropped = new Object();
+    private static final String viewOption = "view";
+    private static final String orderOption = "order";
+    private static final String windowSizeOption = "windowSize";
+    private static final int defaultWindowSize = 1000;
+
+    private enum Order {
+        CHECK, SORT, PRESERVING
+    }
+
     private IFn fn;
+    private IFn keyFn;
+    private IFn valueFn;
+    private KeyValueView view;
+    private ValueEncoding encoding = ValueEncoding.EDN;
+    private IteratorStats stats;
+    private FunctionBudget budget;
+    private ColumnSelection selection;
+    private FunctionState functionState;
+    private boolean exhausted;
+    private Order order = Order.PRESERVING;
+    private int windowSize = defaultWindowSize;
+    private TreeMap<Key, Value> window;
+    private final Key lastKey = new Key();
+    private boolean hasLastKey;
     private Key key;
     private Value value;
 
-    private void doMap() {
+    private IllegalStateException outOfOrder(Key k) {
+        return new IllegalStateException("ClojureMapper result " + k + " sorts before " + lastKey +
+                ((order == Order.SORT) ? ", which was already emitted; raise " + windowSizeOption : "; set " + orderOption + " to sort"));
+    }
+
+    private Object sourceEntry() {
         Key k = getSource().getTopKey();
         Value v = getSource().getTopValue();
+        return (view == null) ? new KeyValue(k, v.get()) : view.set(k, v);
+    }
+
+    /**
+     * Call f, keyFn or valueFn on the source's current entry.
+     *
+     * @return what it returned, or dropped if it went over budget
+     */
+    private Object invoke(IFn f) {
+        Object kv = sourceEntry();
+        long start = stats.startInvoke();
+        long budgetStart = (budget == null) ? 0 : budget.startInvoke();
+        Object ret = (functionState == null) ? f.invoke(kv) : functionState.invoke(f, kv, getSource().getTopKey(), stats);
+        stats.endInvoke(start);
+
+        if (budget != null && !budget.endInvoke(budgetStart)) {
+            return dropped;
+        }
+        return ret;
+    }
+
+    private void checkOrder() {
+        if (order == Order.CHECK) {
+            if (hasLastKey && key.compareTo(lastKey) < 0) {
+                throw outOfOrder(key);
+            }
+            lastKey.set(key);
+            hasLastKey = true;
+        }
+    }
+
+    /**
+     * Count the source's current entry the first time any part of it is
+     * mapped.
+     */
+    private void countEntry() {
+        if (key == null && value == null) {
+            stats.read();
+            stats.emitted();
+        }
+    }
+
+    /**
+     * @return false if the source's current entry is outside the selected
+     * columns, and is passed through or dropped rather than mapped
+     */
+    private boolean selected() {
+        return selection == null || selection.selects(getSource().getTopKey());
+    }
+
+    /**
+     * With keyFn or valueFn, map just the key.
+     *
+     * @return false if the entry went over budget and should be dropped
+     */
+    private boolean mapKey() {
+        if (!selected()) {
+            key = getSource().getTopKey();
+            if (keyFn != null) {
+                checkOrder();
+            }
+            return true;
+        }
+
+        countEntry();
+        if (keyFn == null) {
+            key = getSource().getTopKey();
+            return true;
+        }
+
+        Object ret = invoke(keyFn);
+        if (ret == dropped) {
+            return false;
+        }
+        if (!(ret instanceof Key)) {
+            throw new IllegalStateException(keyFnOption + " must return a Key, not " + ret);
+        }
+
+        key = (Key) ret;
+        checkOrder();
+        return true;
+    }
+
+    /**
+     * With keyFn or valueFn, map just the value.
+     *
+     * @return false if the entry went over budget and should be dropped
+     */
+    private boolean mapValue() {
+        if (!selected()) {
+            value = getSource().getTopValue();
+            return true;
+        }
+
+        countEntry();
+        if (valueFn == null) {
+            value = getSource().getTopValue();
+            return true;
+        }
+
+        Object ret = invoke(valueFn);
+        if (ret == dropped) {
+            return false;
+        }
+
+        long start = stats.startEncode();
+        value = encoding.toValue(ret);
+        stats.endEncode(start);
+        return budget == null || budget.checkValue(value);
+    }
+
+    /**
+     * Map the source's current entry.
+     *
+     * @return false if the entry went over budget and should be dropped
+     */
+    private boolean doMap() {
+        if (fn == null) {
+            key = null;
+            value = null;
+            if (mapKey() && mapValue()) {
+                return true;
+            }
+            key = null;
+            value = null;
+            return false;
+        }
 
-        KeyValue kv = new KeyValue(k, v.get());
-        Object ret = fn.invoke(kv);
+        Key k = getSource().getTopKey();
+        if (!selected()) {
+            key = k;
+            value = getSource().getTopValue();
+            checkOrder();
+            return true;
+        }
 
+        stats.read();
+
+        Object ret = invoke(fn);
+        if (ret == dropped) {
+            return false;
+        }
+
+        long start = stats.startEncode();
         if (ret instanceof IPersistentCollection &&
                 RT.count(ret) == 2 &&
                 RT.first(ret) instanceof Key) {
             key = (Key) RT.first(ret);
-            value = ClojureIteratorUtils.toValue(RT.second(ret));
+            value = encoding.toValue(RT.second(ret));
         } else {
             key = k;
-            value = ClojureIteratorUtils.toValue(ret);
+            value = encoding.toValue(ret);
+        }
+        stats.endEncode(start);
+
+        if (budget != null && !budget.checkValue(value)) {
+            key = null;
+            value = null;
+            return false;
+        }
+
+        checkOrder();
+
+        stats.emitted();
+        return true;
+    }
+
+    /**
+     * In sort mode, map entries into the window until it is full or the
+     * source runs out, and take its first entry.
+     */
+    private void fillWindow() throws IOException {
+        while (!exhausted && window.size() < windowSize && getSource().hasTop()) {
+            Key sourceKey = getSource().getTopKey();
+            Value sourceValue = getSource().getTopValue();
+            if (selection != null && selection.dropsOthers() && !selected()) {
+                getSource().next();
+                continue;
+            }
+
+            if (doMap()) {
+                if (hasLastKey && key.compareTo(lastKey) <= 0) {
+                    throw outOfOrder(key);
+                }
+                // The source reuses its key and value, so copy them if they
+                // were kept.
+                window.put((key == sourceKey) ? new Key(key) : key,
+                        (value == sourceValue) ? new Value(value.get(), true) : value);
+            }
+            getSource().next();
+        }
+
+        if (window.isEmpty()) {
+            key = null;
+            value = null;
+            return;
+        }
+
+        Map.Entry<Key, Value> first = window.pollFirstEntry();
+        key = first.getKey();
+        value = first.getValue();
+        lastKey.set(key);
+        hasLastKey = true;
+    }
+
+    /**
+     * Skip entries outside the selected columns if they are dropped, and with
+     * a budget, map entries until one is kept.
+     */
+    private void findTop() throws IOException {
+        while (!exhausted && getSource().hasTop()) {
+            if (selected()) {
+                if (budget == null || doMap()) {
+                    return;
+                }
+            } else if (!selection.dropsOthers()) {
+                return;
+            }
+            getSource().next();
         }
     }
 
@@ -67,27 +352,84 @@ public final class ClojureMapper extends WrappingIterator implements OptionDescr
     public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
         super.init(source, options, env);
 
-        if (options == null) {
-            throw new IllegalArgumentException(fnOption + " must be set for ClojureMapper");
+        long start = System.nanoTime();
+        String statsOption = fnOption;
+        if (ClojureIteratorUtils.hasFn(options, keyFnOption) || ClojureIteratorUtils.hasFn(options, valueFnOption)) {
+            if (ClojureIteratorUtils.hasFn(options, fnOption)) {
+                throw new IllegalArgumentException(fnOption + " cannot be used with " + keyFnOption + " or " + valueFnOption);
+            }
+            if (ClojureIteratorUtils.hasFn(options, keyFnOption)) {
+                keyFn = ClojureIteratorUtils.getFn(options, keyFnOption, "ClojureMapper");
+                statsOption = keyFnOption;
+            }
+            if (ClojureIteratorUtils.hasFn(options, valueFnOption)) {
+                valueFn = ClojureIteratorUtils.getFn(options, valueFnOption, "ClojureMapper");
+                statsOption = valueFnOption;
+            }
+        } else {
+            fn = ClojureIteratorUtils.getFn(options, fnOption, "ClojureMapper");
         }
+        stats = IteratorStats.create("ClojureMapper", options, statsOption, System.nanoTime() - start);
+        budget = FunctionBudget.create("ClojureMapper", options);
+        selection = ColumnSelection.create(options);
+        functionState = FunctionState.create("ClojureMapper", options);
+        view = Boolean.parseBoolean(options.get(viewOption)) ? new KeyValueView() : null;
+        encoding = ClojureIteratorUtils.getEncoding(options);
 
-        String fnString = options.get(fnOption);
-        if (fnString == null) {
-            throw new IllegalArgumentException(fnOption + " must be set for ClojureMapper");
+        String orderString = options.get(orderOption);
+        if (orderString != null) {
+            try {
+                order = Order.valueOf(orderString.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(orderOption + " must be check, sort or preserving");
+            }
         }
 
-        Object obj = ClojureIteratorUtils.eval(fnString);
-        if (!(obj instanceof IFn)) {
-            throw new IllegalArgumentException(fnOption + " must compile to something that implements IFn");
+        String windowSizeString = options.get(windowSizeOption);
+        if (windowSizeString != null) {
+            windowSize = Integer.parseInt(windowSizeString);
+            if (windowSize < 1) {
+                throw new IllegalArgumentException(windowSizeOption + " must be positive");
+            }
         }
+        window = (order == Order.SORT) ? new TreeMap<Key, Value>() : null;
+    }
 
-        fn = (IFn) obj;
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        ClojureMapper copy = new ClojureMapper();
+        copy.setSource(getSource().deepCopy(env));
+        copy.fn = fn;
+        copy.keyFn = keyFn;
+        copy.valueFn = valueFn;
+        copy.view = (view == null) ? null : new KeyValueView();
+        copy.encoding = encoding;
+        copy.stats = stats.copy();
+        copy.budget = (budget == null) ? null : budget.copy();
+        copy.selection = selection;
+        copy.functionState = (functionState == null) ? null : functionState.copy();
+        copy.order = order;
+        copy.windowSize = windowSize;
+        copy.window = (window == null) ? null : new TreeMap<Key, Value>();
+        return copy;
+    }
+
+    @Override
+    public boolean hasTop() {
+        if (window != null) {
+            return key != null;
+        }
+        return !exhausted && super.hasTop();
     }
 
     @Override
     public Key getTopKey() {
         if (key == null && getSource().getTopKey() != null) {
-            doMap();
+            if (fn == null) {
+                mapKey();
+            } else {
+                doMap();
+            }
         }
 
         return key;
@@ -96,7 +438,11 @@ public final class ClojureMapper extends WrappingIterator implements OptionDescr
     @Override
     public Value getTopValue() {
         if (value == null && getSource().getTopValue() != null) {
-            doMap();
+            if (fn == null) {
+                mapValue();
+            } else {
+                doMap();
+            }
         }
 
         return value;
@@ -104,28 +450,87 @@ public final class ClojureMapper extends WrappingIterator implements OptionDescr
 
     @Override
     public void next() throws IOException {
+        if (window != null) {
+            fillWindow();
+            if (!hasTop()) {
+                stats.finish();
+            }
+            return;
+        }
+
         super.next();
 
         key = null;
         value = null;
+        findTop();
+
+        if (!hasTop()) {
+            stats.finish();
+        }
     }
 
     @Override
     public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
-        super.seek(range, columnFamilies, inclusive);
+        stats.flush();
+        if (budget != null) {
+            budget.reset();
+        }
+        exhausted = false;
+        hasLastKey = false;
+        if (functionState != null) {
+            functionState.reset();
+        }
+        if (selection != null) {
+            Collection<ByteSequence> families = selection.seekFamilies(columnFamilies, inclusive);
+            if (families != columnFamilies) {
+                // Seeking inclusively with no families would read every row
+                // for nothing.
+                exhausted = families.isEmpty();
+                columnFamilies = families;
+                inclusive = true;
+            }
+        }
+        if (!exhausted) {
+            super.seek(range, columnFamilies, inclusive);
+        }
 
         key = null;
         value = null;
+        if (window != null) {
+            window.clear();
+            fillWindow();
+        } else {
+            findTop();
+        }
+
+        if (!hasTop()) {
+            stats.finish();
+        }
     }
 
     public OptionDescriber.IteratorOptions describeOptions() {
+        Map<String, String> namedOptions = new HashMap<String, String>();
+        namedOptions.put(fnOption, "String containing mapper map function");
+        namedOptions.put(keyFnOption, "Optional string containing a function returning an entry's new Key, used instead of f");
+        namedOptions.put(valueFnOption, "Optional string containing a function returning an entry's new value, used instead of f");
+        namedOptions.put(viewOption, "Optional boolean, pass f a reused KeyValueView instead of a copied KeyValue");
+        namedOptions.put(ClojureIteratorUtils.encodingOption, "Optional encoding of results: edn, binary, raw-long or raw-utf8");
+        namedOptions.put(IteratorStats.logMetricsOption, "Optional boolean, log the metrics of each scan when it ends");
+        namedOptions.put(orderOption, "Optional check, sort or preserving, how to keep rewritten keys in order (default preserving)");
+        namedOptions.put(windowSizeOption, "Optional number of entries mapped ahead and sorted in sort order mode (default " + defaultWindowSize + ")");
+        namedOptions.putAll(FunctionBudget.describeOptions());
+        namedOptions.putAll(ColumnSelection.describeOptions());
+        namedOptions.putAll(FunctionState.describeOptions());
+
         return new IteratorOptions("cljmapper",
                 "ClojureMApper allows a Clojure function to be passed in and invoked on every key-value pair",
-                Collections.singletonMap(fnOption, "String containing mapper map function"),
+                namedOptions,
                 Collections.<String>emptyList());
     }
 
     public boolean validateOptions(Map<String, String> options) {
-        return (options != null) && (options.get(fnOption) != null);
+        return ClojureIteratorUtils.hasFn(options, fnOption) ||
+                ClojureIteratorUtils.hasFn(options, keyFnOption) ||
+                ClojureIteratorUtils.hasFn(options, valueFnOption);
     }
 }
@@ -0,0 +1,378 @@
+package clojure_accumulo.iterators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.RT;
+import clojure.lang.RestFn;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.KeyValue;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.OptionDescriber;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+
+/**
+ * Runs a transducer over the entries of its source in a single pass, so a
+ * filter, a map and a combine need one iterator instead of three, and the
+ * stages hand each other Clojure data rather than encoded Values.
+ *
+ * The xf option is a transducer: a function that takes a reducing function
+ * and returns another.  Each entry is passed to it as a KeyValue.  Clojure
+ * 1.3 has no transducers of its own, so Transducers provides the common ones:
+ *
+ * (import '[clojure_accumulo.iterators Transducers])
+ * (comp (Transducers/filtering (fn [[k v]] (= (str (.getColumnFamily k)) "count")))
+ *       (Transducers/mapping (fn [[k v]] (Long/parseLong (String. (.get v))))))
+ *
+ * Without the rf option, every item that comes out of xf is emitted.  As with
+ * ClojureMapper, an item that is a two-element vector whose first element is
+ * a Key is used as the key and value, an entry passed through unchanged is
+ * emitted as it was, and any other item is used as a value for the key of
+ * the entry that produced it.  Changed keys must keep the sort order: a key
+ * that sorts before the one emitted before it fails the scan with an
+ * IllegalStateException, as ClojureMapper's check order does.
+ * xf is applied afresh on each seek, and if it ends the reduction early (for
+ * example with Transducers/taking), the scan of that range ends there.
+ *
+ * With the rf option, the items that come out of xf for all the versions of
+ * a key (row, family, qualifier and visibility) are reduced with rf, starting
+ * from val, or from (rf) if val is not given, and completed with (rf acc) if
+ * rf has a one-argument arity.  The result is emitted under the newest key,
+ * unless xf let nothing through.  xf is applied afresh for each key, and
+ * ending the reduction early skips the remaining versions.
+ *
+ * Deleted keys are passed through untouched.  Results other than Values are
+ * written with the encoding named by the encoding option (see ValueEncoding),
+ * EDN by default.
+ *
+ * If the view option is true, xf is passed a reused KeyValueView instead of a
+ * freshly copied KeyValue, and must not hold on to it.
+ *
+ * Entries read, results emitted and the time spent in xf and in encoding its
+ * results are recorded in the FunctionMetrics for xf, and logged when the
+ * scan ends if logMetrics is true.
+ */
+public final class ClojurePipeline extends WrappingIterator implements OptionDescriber {
+    private static final String xfOption = "xf";
+    private static final String rfOption = "rf";
+    private static final String valOption = "val";
+    private static final String viewOption = "view";
+    private IFn xf;
+    private IFn rf;
+    private Object val;
+    private KeyValueView view;
+    private ValueEncoding encoding = ValueEncoding.EDN;
+    private IteratorStats stats;
+    private final Collect collect = new Collect();
+    private final Count count = new Count();
+    private IFn pipeline;
+    private boolean done;
+    private final List<Key> keys = new ArrayList<Key>();
+    private final List<Value> values = new ArrayList<Value>();
+    private int pos;
+    private final Key lastKey = new Key();
+    private boolean hasLastKey;
+
+    /**
+     * The reducing function at the end of xf without rf, which keeps the
+     * items for the entry being processed.
+     */
+    private static final class Collect extends AFn {
+        final List<Object> items = new ArrayList<Object>();
+
+        @Override
+        public Object invoke() {
+            return null;
+        }
+
+        @Override
+        public Object invoke(Object acc) {
+            return acc;
+        }
+
+        @Override
+        public Object invoke(Object acc, Object item) {
+            items.add(item);
+            return acc;
+        }
+    }
+
+    /**
+     * Wraps rf to note whether xf let anything through.
+     */
+    private static final class Count extends AFn {
+        IFn rf;
+        boolean completes;
+        long count;
+
+        void setRf(IFn rf) {
+            this.rf = rf;
+            this.completes = (rf != null) && hasUnaryArity(rf);
+        }
+
+        @Override
+        public Object invoke() {
+            return rf.invoke();
+        }
+
+        @Override
+        public Object invoke(Object acc) {
+            return completes ? rf.invoke(acc) : acc;
+        }
+
+        @Override
+        public Object invoke(Object acc, Object item) {
+            count++;
+            return rf.invoke(acc, item);
+        }
+    }
+
+    /**
+     * Functions written for Clojure 1.3, such as its conj, often have no
+     * completion arity, so rf is only completed when it can be.
+     */
+    static boolean hasUnaryArity(IFn f) {
+        Class<?> declaring;
+        try {
+            declaring = f.getClass().getMethod("invoke", Object.class).getDeclaringClass();
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+
+        if (declaring == RestFn.class) {
+            return ((RestFn) f).getRequiredArity() <= 1;
+        }
+        return declaring != AFn.class;
+    }
+
+    private Object invoke(IFn f, Object acc, Key k, Value v) {
+        stats.read();
+
+        Object kv = (view == null) ? new KeyValue(k, v.get()) : view.set(k, v);
+        long start = stats.startInvoke();
+        Object ret = f.invoke(acc, kv);
+        stats.endInvoke(start);
+
+        return ret;
+    }
+
+    /**
+     * Queue an entry, checking that keys never go backwards.
+     */
+    private void add(Key k, Value v) {
+        if (hasLastKey && k.compareTo(lastKey) < 0) {
+            throw new IllegalStateException("ClojurePipeline result " + k + " sorts before " + lastKey +
+                    "; xf must keep keys in order");
+        }
+        lastKey.set(k);
+        hasLastKey = true;
+
+        keys.add(k);
+        values.add(v);
+    }
+
+    private void emit(Key k, Object item) {
+        long start = stats.startEncode();
+        if (item == view) {
+            add(new Key(view.getKey()), new Value(view.getValue().get(), true));
+        } else if (item instanceof KeyValue) {
+            add(((KeyValue) item).getKey(), ((KeyValue) item).getValue());
+        } else if (item instanceof IPersistentCollection &&
+                RT.count(item) == 2 &&
+                RT.first(item) instanceof Key) {
+            add((Key) RT.first(item), encoding.toValue(RT.second(item)));
+        } else {
+            add(k, encoding.toValue(item));
+        }
+        stats.endEncode(start);
+
+        stats.emitted();
+    }
+
+    private void emitCollected(Key k) {
+        for (Object item : collect.items) {
+            emit(k, item);
+        }
+        collect.items.clear();
+    }
+
+    /**
+     * Run one entry through the pipeline, finishing it at the end of the
+     * source or once it has ended the reduction.
+     */
+    private void processEntry() throws IOException {
+        // The source reuses its key, and collected items may refer to it.
+        Key k = new Key(getSource().getTopKey());
+        Object ret = invoke(pipeline, null, k, getSource().getTopValue());
+        getSource().next();
+
+        if (Reduced.isReduced(ret)) {
+            done = true;
+        }
+        if (done || !getSource().hasTop()) {
+            done = true;
+            pipeline.invoke(Reduced.unwrap(ret));
+        }
+
+        emitCollected(k);
+    }
+
+    /**
+     * Reduce all the versions of the source's top key.
+     */
+    private void processKey() throws IOException {
+        Key k = new Key(getSource().getTopKey());
+
+        count.count = 0;
+        IFn f = (IFn) xf.invoke(count);
+        Object acc = (val == null) ? rf.invoke() : val;
+
+        boolean reduced = false;
+        do {
+            if (!reduced) {
+                // The source reuses its key, and xf or rf may hold on to it.
+                acc = invoke(f, acc, new Key(getSource().getTopKey()), getSource().getTopValue());
+                if (Reduced.isReduced(acc)) {
+                    acc = Reduced.unwrap(acc);
+                    reduced = true;
+                }
+            }
+            getSource().next();
+        } while (getSource().hasTop() &&
+                !getSource().getTopKey().isDeleted() &&
+                getSource().getTopKey().equals(k, PartialKey.ROW_COLFAM_COLQUAL_COLVIS));
+
+        acc = Reduced.unwrap(f.invoke(acc));
+        if (count.count > 0) {
+            emit(k, acc);
+        }
+    }
+
+    private void findTop() throws IOException {
+        while (pos >= keys.size()) {
+            keys.clear();
+            values.clear();
+            pos = 0;
+
+            if (done || !getSource().hasTop()) {
+                stats.finish();
+                return;
+            }
+
+            if (getSource().getTopKey().isDeleted()) {
+                add(new Key(getSource().getTopKey()), new Value(getSource().getTopValue().get(), true));
+                getSource().next();
+            } else if (rf == null) {
+                processEntry();
+            } else {
+                processKey();
+            }
+        }
+    }
+
+    @Override
+    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
+        super.init(source, options, env);
+
+        long start = System.nanoTime();
+        xf = ClojureIteratorUtils.getFn(options, xfOption, "ClojurePipeline");
+        if (ClojureIteratorUtils.hasFn(options, rfOption)) {
+            rf = ClojureIteratorUtils.getFn(options, rfOption, "ClojurePipeline");
+        }
+        stats = IteratorStats.create("ClojurePipeline", options, xfOption, System.nanoTime() - start);
+
+        String valString = options.get(valOption);
+        if (valString != null) {
+            val = ClojureIteratorUtils.eval(valString);
+        }
+
+        view = Boolean.parseBoolean(options.get(viewOption)) ? new KeyValueView() : null;
+        encoding = ClojureIteratorUtils.getEncoding(options);
+        count.setRf(rf);
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        ClojurePipeline copy = new ClojurePipeline();
+        copy.setSource(getSource().deepCopy(env));
+        copy.xf = xf;
+        copy.rf = rf;
+        copy.val = val;
+        copy.view = (view == null) ? null : new KeyValueView();
+        copy.encoding = encoding;
+        copy.stats = stats.copy();
+        copy.count.setRf(rf);
+        return copy;
+    }
+
+    @Override
+    public boolean hasTop() {
+        return pos < keys.size();
+    }
+
+    @Override
+    public Key getTopKey() {
+        return hasTop() ? keys.get(pos) : null;
+    }
+
+    @Override
+    public Value getTopValue() {
+        return hasTop() ? values.get(pos) : null;
+    }
+
+    @Override
+    public void next() throws IOException {
+        pos++;
+        findTop();
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        stats.flush();
+        super.seek(range, columnFamilies, inclusive);
+
+        keys.clear();
+        values.clear();
+        collect.items.clear();
+        pos = 0;
+        hasLastKey = false;
+        done = false;
+        if (rf == null) {
+            pipeline = (IFn) xf.invoke(collect);
+        }
+
+        findTop();
+    }
+
+    public IteratorOptions describeOptions() {
+        Map<String, String> namedOptions = new HashMap<String, String>();
+        namedOptions.put(xfOption, "String containing a transducer applied to every key-value pair");
+        namedOptions.put(rfOption, "Optional string containing a function reducing the output of xf for each key");
+        namedOptions.put(valOption, "Optional string containing initial value for rf");
+        namedOptions.put(viewOption, "Optional boolean, pass xf a reused KeyValueView instead of a copied KeyValue");
+        namedOptions.put(ClojureIteratorUtils.encodingOption, "Optional encoding of results: edn, binary, raw-long or raw-utf8");
+        namedOptions.put(IteratorStats.logMetricsOption, "Optional boolean, log the metrics of each scan when it ends");
+
+        return new IteratorOptions("cljpipeline",
+                "ClojurePipeline runs a Clojure transducer, and optionally a reduction for each key, in a single iterator",
+                namedOptions,
+                Collections.<String>emptyList());
+    }
+
+    public boolean validateOptions(Map<String, String> options) {
+        return ClojureIteratorUtils.hasFn(options, xfOption);
+    }
+}
@@ -0,0 +1,179 @@
+package clojure_accumulo.iterators;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.accumulo.start.classloader.AccumuloClassLoader;
+import org.apache.log4j.Logger;
+
+/**
+ * Loads the Clojure runtime, and optionally compiles functions into
+ * ClojureFunctionCache, in a background thread when a tablet server starts,
+ * so that the first scan using a Clojure iterator does not pay for it.
+ *
+ * The simplest way to run it is to add the small agent jar (see
+ * ClojurePreloaderAgent), kept outside lib/ext, to the tablet server's JVM
+ * options
+ *
+ * -javaagent:/path/clojure-accumulo-iterators-agent.jar=/path/filter.clj,my.ns/keep?
+ *
+ * while the main jar and Clojure stay in lib/ext.  The argument, or the
+ * clojure_accumulo.preload system property if there is none, is a
+ * comma-separated list.  Entries ending in .clj are files holding exactly the
+ * source passed in an iterator option, which is compiled into the cache;
+ * other entries are vars, as used by the -ref options, whose namespaces are
+ * loaded.
+ *
+ * isReady() says whether preloading has finished, successfully or not, and
+ * getFailed() lists what could not be preloaded, with clojure.core first if
+ * the runtime itself could not be loaded.
+ */
+public final class ClojurePreloader {
+    private static final String preloadProperty = "clojure_accumulo.preload";
+    static final String runtimeEntry = "clojure.core";
+    private static final Logger log = Logger.getLogger(ClojurePreloader.class);
+    private static final AtomicBoolean started = new AtomicBoolean();
+    private static final CountDownLatch ready = new CountDownLatch(1);
+    private static volatile List<String> failed = Collections.emptyList();
+
+    private ClojurePreloader() {
+    }
+
+    /**
+     * Start preloading what the clojure_accumulo.preload system property
+     * lists, if anything.
+     *
+     * @return true if this call started the preloader
+     */
+    public static boolean start() {
+        return start(null);
+    }
+
+    /**
+     * Start preloading in a daemon thread.  Only the first call does anything.
+     *
+     * @param entries comma-separated .clj files and vars, or null to read the
+     * clojure_accumulo.preload system property
+     * @return true if this call started the preloader
+     */
+    public static boolean start(String entries) {
+        if (!started.compareAndSet(false, true)) {
+            return false;
+        }
+
+        final String toPreload = (entries == null) ? System.getProperty(preloadProperty) : entries;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    failed = Collections.unmodifiableList(preload(toPreload));
+                } catch (Throwable t) {
+                    log.error("preloading failed", t);
+                    failed = Collections.singletonList(runtimeEntry);
+                } finally {
+                    ready.countDown();
+                }
+            }
+        }, "clojure-accumulo-preloader");
+        thread.setDaemon(true);
+        thread.start();
+
+        return true;
+    }
+
+    /**
+     * @return true once preloading has finished
+     */
+    public static boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Wait for preloading to finish.
+     *
+     * @return true if it finished within the timeout
+     */
+    public static boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    /**
+     * @return the entries that could not be preloaded
+     */
+    public static List<String> getFailed() {
+        return failed;
+    }
+
+    /**
+     * Load the runtime and then each entry in the calling thread.
+     *
+     * @param entries comma-separated .clj files and vars, or null
+     * @return the entries that could not be preloaded, or just clojure.core
+     * if the runtime could not be loaded
+     */
+    static List<String> preload(String entries) {
+        long start = System.nanoTime();
+        List<String> failures = new ArrayList<String>();
+
+        try {
+            Thread.currentThread().setContextClassLoader(AccumuloClassLoader.getClassLoader());
+        } catch (Throwable t) {
+            log.warn("could not set Accumulo's class loader, preloading with " +
+                    Thread.currentThread().getContextClassLoader(), t);
+        }
+
+        // Initializing RT loads clojure.core, and compiling something loads
+        // the compiler.  Without them nothing else can be preloaded.
+        try {
+            ClojureIteratorUtils.load("(fn [x] x)");
+        } catch (Throwable t) {
+            log.error("could not load the Clojure runtime", t);
+            failures.add(runtimeEntry);
+            return failures;
+        }
+
+        if (entries != null) {
+            for (String entry : entries.split(",")) {
+                entry = entry.trim();
+                if (entry.length() == 0) {
+                    continue;
+                }
+
+                try {
+                    if (entry.endsWith(".clj")) {
+                        ClojureIteratorUtils.eval(readFile(entry));
+                    } else {
+                        ClojureIteratorUtils.resolve(entry);
+                    }
+                } catch (Throwable t) {
+                    log.warn("could not preload " + entry, t);
+                    failures.add(entry);
+                }
+            }
+        }
+
+        log.info("preloaded Clojure in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        return failures;
+    }
+
+    private static String readFile(String path) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(path), "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[4096];
+            for (int n = reader.read(buf); n >= 0; n = reader.read(buf)) {
+                sb.append(buf, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package clojure_accumulo.iterators;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * The Java agent that starts ClojurePreloader in a tablet server.
+ *
+ * -javaagent puts its jar on the system class path, where neither Clojure
+ * nor Accumulo's own jars in lib can be seen, and where classes would shadow
+ * the copies the tablet server loads from lib/ext.  So this class is built
+ * into a jar of its own, the agent classifier, and only ever touches
+ * ClojurePreloader through AccumuloClassLoader, by reflection, so that the
+ * preloader fills the same ClojureFunctionCache the iterators use.
+ */
+public final class ClojurePreloaderAgent {
+    private static final String classLoaderClass = "org.apache.accumulo.start.classloader.AccumuloClassLoader";
+    private static final String preloaderClass = "clojure_accumulo.iterators.ClojurePreloader";
+
+    private ClojurePreloaderAgent() {
+    }
+
+    /**
+     * @return ClojurePreloader as the tablet server's iterators see it
+     */
+    static Class<?> preloaderClass() throws Exception {
+        ClassLoader loader = (ClassLoader) Class.forName(classLoaderClass).getMethod("getClassLoader").invoke(null);
+        return Class.forName(preloaderClass, true, loader);
+    }
+
+    /**
+     * Start the preloader, without holding up the tablet server's start.
+     *
+     * @param args comma-separated .clj files and vars, or null
+     * @param inst unused
+     */
+    public static void premain(final String args, Instrumentation inst) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    preloaderClass().getMethod("start", String.class).invoke(null, args);
+                } catch (Throwable t) {
+                    // Logging lives on the other side of the class loader.
+                    System.err.println("clojure-accumulo-iterators: could not start the preloader: " + t);
+                    t.printStackTrace();
+                }
+            }
+        }, "clojure-accumulo-preloader-agent");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
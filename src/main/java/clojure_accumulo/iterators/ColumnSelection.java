@@ -0,0 +1,168 @@
+package clojure_accumulo.iterators;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+
+/**
+ * The columns an iterator's Clojure function cares about, so that it is only
+ * invoked on those.
+ *
+ * families             comma separated column families
+ * qualifierPrefixes    comma separated prefixes, one of which a column
+ *                      qualifier must start with
+ * others               pass (the default) or drop, what happens to entries
+ *                      outside the selection
+ *
+ * Entries outside the selection are passed through untouched, or dropped.
+ * When they are dropped and families is set, the iterator seeks its source
+ * with only the selected families, so that the tablet server can skip the
+ * rest of each row without reading it.
+ *
+ * Selections are only created when families or qualifierPrefixes is set, so
+ * iterators without them pay nothing.
+ */
+final class ColumnSelection {
+    static final String familiesOption = "families";
+    static final String qualifierPrefixesOption = "qualifierPrefixes";
+    static final String othersOption = "others";
+
+    private final Set<ByteSequence> families;
+    private final byte[][] qualifierPrefixes;
+    private final boolean dropOthers;
+
+    /**
+     * @param families the selected families, or null for every family
+     * @param qualifierPrefixes the selected qualifier prefixes, or null for
+     * every qualifier
+     */
+    ColumnSelection(Set<ByteSequence> families, byte[][] qualifierPrefixes, boolean dropOthers) {
+        this.families = families;
+        this.qualifierPrefixes = qualifierPrefixes;
+        this.dropOthers = dropOthers;
+    }
+
+    /**
+     * An empty option is the single empty string, as the empty family is a
+     * family like any other.
+     */
+    private static String[] split(Map<String, String> options, String option) {
+        String s = options.get(option);
+        return (s == null) ? null : s.split(",", -1);
+    }
+
+    /**
+     * Read the selection options.
+     *
+     * @param options iterator options
+     * @return the selection, or null if no columns are selected
+     */
+    static ColumnSelection create(Map<String, String> options) {
+        String[] familyStrings = split(options, familiesOption);
+        String[] prefixStrings = split(options, qualifierPrefixesOption);
+
+        String othersString = options.get(othersOption);
+        boolean dropOthers = false;
+        if (othersString != null) {
+            if (othersString.equals("drop")) {
+                dropOthers = true;
+            } else if (!othersString.equals("pass")) {
+                throw new IllegalArgumentException(othersOption + " must be pass or drop");
+            }
+        }
+
+        if (familyStrings == null && prefixStrings == null) {
+            return null;
+        }
+
+        Set<ByteSequence> families = null;
+        if (familyStrings != null) {
+            families = new HashSet<ByteSequence>();
+            for (String family : familyStrings) {
+                families.add(new ArrayByteSequence(BinaryValueCodec.utf8(family)));
+            }
+        }
+
+        byte[][] qualifierPrefixes = null;
+        if (prefixStrings != null) {
+            qualifierPrefixes = new byte[prefixStrings.length][];
+            for (int i = 0; i < prefixStrings.length; i++) {
+                qualifierPrefixes[i] = BinaryValueCodec.utf8(prefixStrings[i]);
+            }
+        }
+
+        return new ColumnSelection(families, qualifierPrefixes, dropOthers);
+    }
+
+    static Map<String, String> describeOptions() {
+        Map<String, String> namedOptions = new HashMap<String, String>();
+        namedOptions.put(familiesOption, "Optional comma separated column families the function is invoked on");
+        namedOptions.put(qualifierPrefixesOption, "Optional comma separated prefixes of the column qualifiers the function is invoked on");
+        namedOptions.put(othersOption, "Optional pass or drop, what to do with entries in other columns (default pass)");
+        return namedOptions;
+    }
+
+    boolean dropsOthers() {
+        return dropOthers;
+    }
+
+    private static boolean startsWith(ByteSequence bytes, byte[] prefix) {
+        if (bytes.length() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes.byteAt(i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the function should be invoked on an entry with key k
+     */
+    boolean selects(Key k) {
+        if (families != null && !families.contains(k.getColumnFamilyData())) {
+            return false;
+        }
+        if (qualifierPrefixes == null) {
+            return true;
+        }
+
+        ByteSequence qualifier = k.getColumnQualifierData();
+        for (byte[] prefix : qualifierPrefixes) {
+            if (startsWith(qualifier, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Narrow the column families of a seek to the selected ones, if entries
+     * in other families are dropped.
+     *
+     * @return columnFamilies, or the families to seek the source with
+     * inclusively, which may be empty if none of the selected families can be
+     * returned
+     */
+    Collection<ByteSequence> seekFamilies(Collection<ByteSequence> columnFamilies, boolean inclusive) {
+        if (!dropOthers || families == null) {
+            return columnFamilies;
+        }
+
+        Set<ByteSequence> narrowed = new HashSet<ByteSequence>();
+        for (ByteSequence family : families) {
+            if (columnFamilies.contains(family) == inclusive) {
+                narrowed.add(family);
+            }
+        }
+        return narrowed;
+    }
+}
@@ -0,0 +1,128 @@
+package clojure_accumulo.iterators;
+
+/**
+ * Estimates how often each value was added, never under-counting.
+ *
+ * With width w and depth d, an estimate is over by at most 2N/w (N being the
+ * total count) with probability 1 - (1/2)^d.  The default 2048 by 4 is over by
+ * at most 0.1% of the total with probability 94%.
+ *
+ * (doto (CountMinSketch.) (.add "a") (.add "a" 3))
+ *
+ * estimates 4 for "a".
+ */
+public final class CountMinSketch extends Sketch {
+    public static final int defaultWidth = 2048;
+    public static final int defaultDepth = 4;
+    private final int width;
+    private final int depth;
+    private final long[] counts;
+    private long total;
+
+    public CountMinSketch() {
+        this(defaultWidth, defaultDepth);
+    }
+
+    public CountMinSketch(int width, int depth) {
+        if (width < 1 || depth < 1) {
+            throw new IllegalArgumentException("CountMinSketch width and depth must be positive");
+        }
+        this.width = width;
+        this.depth = depth;
+        this.counts = new long[width * depth];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the sum of the counts added
+     */
+    public long total() {
+        return total;
+    }
+
+    private int index(int row, long h) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        int combined = h1 + row * h2;
+        return row * width + (combined & Integer.MAX_VALUE) % width;
+    }
+
+    @Override
+    public void add(Object item) {
+        add(item, 1);
+    }
+
+    public void add(Object item, long count) {
+        long h = hash(item);
+        for (int row = 0; row < depth; row++) {
+            counts[index(row, h)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * @return the estimated count of item
+     */
+    public long estimate(Object item) {
+        long h = hash(item);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counts[index(row, h)]);
+        }
+        return min;
+    }
+
+    @Override
+    public Sketch merge(Sketch other) {
+        if (!(other instanceof CountMinSketch) || ((CountMinSketch) other).width != width || ((CountMinSketch) other).depth != depth) {
+            throw new IllegalArgumentException("can only merge a CountMinSketch of width " + width + " and depth " + depth);
+        }
+
+        long[] otherCounts = ((CountMinSketch) other).counts;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += otherCounts[i];
+        }
+        total += ((CountMinSketch) other).total;
+        return this;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        BinaryValueCodec.Output out = header(COUNT_MIN);
+        out.writeVarint(width);
+        out.writeVarint(depth);
+        out.writeVarint(total);
+        for (long count : counts) {
+            out.writeVarint(count);
+        }
+        return finish(out);
+    }
+
+    static CountMinSketch read(BinaryValueCodec.Input in) {
+        long width = in.readVarint();
+        long depth = in.readVarint();
+        // Every count takes at least a byte.
+        long remaining = in.buf.length - in.pos;
+        if (width < 1 || depth < 1 || width > remaining || depth > remaining || width * depth > remaining) {
+            throw new IllegalArgumentException("CountMinSketch too big for its bytes");
+        }
+        CountMinSketch cms = new CountMinSketch((int) width, (int) depth);
+        cms.total = in.readVarint();
+        for (int i = 0; i < cms.counts.length; i++) {
+            cms.counts[i] = in.readVarint();
+        }
+        return cms;
+    }
+
+    @Override
+    public String toString() {
+        return "#<CountMinSketch " + width + "x" + depth + " total " + total + ">";
+    }
+}
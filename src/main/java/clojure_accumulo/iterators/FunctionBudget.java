@@ -0,0 +1,223 @@
+package clojure_accumulo.iterators;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.accumulo.core.data.Value;
+import org.apache.log4j.Logger;
+
+/**
+ * Limits on how much a single iterator's Clojure function may cost, so that
+ * one bad query cannot pin a tablet server's scan thread.
+ *
+ * maxInvokeMillis    wall time of a single invocation
+ * maxBatchMillis     total time spent in the function between seeks
+ * maxBatchBytes      bytes allocated by the scan thread between seeks,
+ *                    checked every 64 invocations where the JVM can tell
+ * maxValueBytes      size of an encoded result
+ *
+ * The time limits are checked when an invocation returns; a function that
+ * never returns cannot be stopped from inside the JVM.  budgetPolicy says
+ * what happens when maxInvokeMillis or maxValueBytes is passed: fail (the
+ * default) throws and fails the scan, drop discards the entry.  Passing a
+ * batch limit always fails the scan: an iterator that stopped early would
+ * look to Accumulo 1.4 like the end of the tablet, and the client would get
+ * truncated results without knowing it.  Accumulo 1.4 has no way for an
+ * iterator to yield its thread, so there is no yield policy.
+ *
+ * Budgets are only created when one of the limits is set, so iterators
+ * without them pay nothing.
+ */
+final class FunctionBudget {
+    static final String maxInvokeMillisOption = "maxInvokeMillis";
+    static final String maxBatchMillisOption = "maxBatchMillis";
+    static final String maxBatchBytesOption = "maxBatchBytes";
+    static final String maxValueBytesOption = "maxValueBytes";
+    static final String budgetPolicyOption = "budgetPolicy";
+
+    private static final Logger log = Logger.getLogger(FunctionBudget.class);
+    private static final int allocationCheckMask = 63;
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    enum Policy {
+        FAIL, DROP
+    }
+
+    private final String iteratorName;
+    private final long maxInvokeNanos;
+    private final long maxBatchNanos;
+    private final long maxBatchBytes;
+    private final long maxValueBytes;
+    private final Policy policy;
+
+    private long batchNanos;
+    private long batchStartBytes;
+    private long invocations;
+    private boolean warned;
+
+    /**
+     * Limits that are not set are Long.MAX_VALUE.
+     */
+    FunctionBudget(String iteratorName, long maxInvokeNanos, long maxBatchNanos, long maxBatchBytes, long maxValueBytes, Policy policy) {
+        this.iteratorName = iteratorName;
+        this.maxInvokeNanos = maxInvokeNanos;
+        this.maxBatchNanos = maxBatchNanos;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxValueBytes = maxValueBytes;
+        this.policy = policy;
+    }
+
+    private static long getLong(Map<String, String> options, String option) {
+        String s = options.get(option);
+        if (s == null) {
+            return Long.MAX_VALUE;
+        }
+
+        long l = Long.parseLong(s);
+        if (l <= 0) {
+            throw new IllegalArgumentException(option + " must be positive");
+        }
+        return l;
+    }
+
+    /**
+     * Read the budget options.
+     *
+     * @param iteratorName name of the iterator, for messages
+     * @param options iterator options
+     * @return the budget, or null if no limit is set
+     */
+    static FunctionBudget create(String iteratorName, Map<String, String> options) {
+        long maxInvokeMillis = getLong(options, maxInvokeMillisOption);
+        long maxBatchMillis = getLong(options, maxBatchMillisOption);
+        long maxBatchBytes = getLong(options, maxBatchBytesOption);
+        long maxValueBytes = getLong(options, maxValueBytesOption);
+
+        String policyString = options.get(budgetPolicyOption);
+        Policy policy = Policy.FAIL;
+        if (policyString != null) {
+            try {
+                policy = Policy.valueOf(policyString.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(budgetPolicyOption + " must be fail or drop");
+            }
+        }
+
+        if (maxBatchBytes != Long.MAX_VALUE && allocatedBytes() < 0) {
+            log.warn("this JVM does not count allocated bytes per thread, ignoring " + maxBatchBytesOption);
+            maxBatchBytes = Long.MAX_VALUE;
+        }
+        if (maxInvokeMillis == Long.MAX_VALUE && maxBatchMillis == Long.MAX_VALUE &&
+                maxBatchBytes == Long.MAX_VALUE && maxValueBytes == Long.MAX_VALUE) {
+            return null;
+        }
+
+        return new FunctionBudget(iteratorName,
+                (maxInvokeMillis == Long.MAX_VALUE) ? Long.MAX_VALUE : maxInvokeMillis * 1000000,
+                (maxBatchMillis == Long.MAX_VALUE) ? Long.MAX_VALUE : maxBatchMillis * 1000000,
+                maxBatchBytes, maxValueBytes, policy);
+    }
+
+    /**
+     * @return a fresh budget with the same limits, for a deepCopy
+     */
+    FunctionBudget copy() {
+        return new FunctionBudget(iteratorName, maxInvokeNanos, maxBatchNanos, maxBatchBytes, maxValueBytes, policy);
+    }
+
+    /**
+     * @return descriptions of the budget options, for describeOptions
+     */
+    static Map<String, String> describeOptions() {
+        Map<String, String> namedOptions = new HashMap<String, String>();
+        namedOptions.put(maxInvokeMillisOption, "Optional maximum milliseconds for a single invocation of the function");
+        namedOptions.put(maxBatchMillisOption, "Optional maximum milliseconds spent in the function between seeks");
+        namedOptions.put(maxBatchBytesOption, "Optional maximum bytes allocated between seeks");
+        namedOptions.put(maxValueBytesOption, "Optional maximum size of an encoded result");
+        namedOptions.put(budgetPolicyOption, "Optional fail or drop, what to do when a budget is exceeded (default fail)");
+        return namedOptions;
+    }
+
+    private static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Call on every seek, which starts a new batch.
+     */
+    void reset() {
+        batchNanos = 0;
+        invocations = 0;
+        warned = false;
+        if (maxBatchBytes != Long.MAX_VALUE) {
+            batchStartBytes = allocatedBytes();
+        }
+    }
+
+    /**
+     * Call just before invoking the function.
+     *
+     * @return a start time to pass to endInvoke
+     */
+    long startInvoke() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Call just after invoking the function.
+     *
+     * @return false if the entry should be dropped
+     */
+    boolean endInvoke(long start) {
+        long nanos = System.nanoTime() - start;
+        batchNanos += nanos;
+
+        if (nanos > maxInvokeNanos) {
+            return exceeded(maxInvokeMillisOption, nanos / 1000000 + "ms", false);
+        }
+        if (batchNanos > maxBatchNanos) {
+            return exceeded(maxBatchMillisOption, batchNanos / 1000000 + "ms", true);
+        }
+        if (maxBatchBytes != Long.MAX_VALUE && (invocations++ & allocationCheckMask) == 0) {
+            long bytes = allocatedBytes() - batchStartBytes;
+            if (bytes > maxBatchBytes) {
+                return exceeded(maxBatchBytesOption, bytes + " bytes", true);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Check the size of an encoded result.
+     *
+     * @return false if the entry should be dropped
+     */
+    boolean checkValue(Value value) {
+        if (value.getSize() > maxValueBytes) {
+            return exceeded(maxValueBytesOption, value.getSize() + " bytes", false);
+        }
+        return true;
+    }
+
+    private boolean exceeded(String option, String amount, boolean batch) {
+        String message = iteratorName + " exceeded " + option + " with " + amount;
+        if (policy == Policy.FAIL || batch) {
+            throw new IllegalStateException(message);
+        }
+
+        if (!warned) {
+            log.warn(message + ", dropping entries");
+            warned = true;
+        }
+        return false;
+    }
+}
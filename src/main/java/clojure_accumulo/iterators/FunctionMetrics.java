@@ -0,0 +1,241 @@
+package clojure_accumulo.iterators;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runtime counters for every iterator running a given Clojure function,
+ * aggregated across the whole process.
+ *
+ * Functions are identified by the ClojureFunctionCache hash of their source.
+ * Each one is registered with the platform MBean server as
+ * clojure_accumulo.iterators:type=FunctionMetrics,fn=HASH, so the counters
+ * can be read from a tablet server with any JMX client.  Like the functions
+ * themselves, metrics are kept for at most as many functions as the
+ * ClojureFunctionCache holds; the least recently initialized are dropped and
+ * unregistered, and start again from zero if the function is seen again.
+ *
+ * Iterators never update these counters per entry.  They count into their
+ * own IteratorStats and add the totals here every few thousand entries, so
+ * concurrent scans do not contend on the atomics.
+ *
+ * Invocation and encoding times are sampled, one call in every sixteen, and
+ * the estimated total scales the sampled time by the number of calls.  The
+ * histogram counts sampled invocations by duration: bucket i holds calls that
+ * took less than 2^i nanoseconds but at least 2^(i-1).
+ */
+public final class FunctionMetrics implements FunctionMetricsMBean {
+    static final int HISTOGRAM_BUCKETS = 40;
+
+    private static final Logger log = Logger.getLogger(FunctionMetrics.class);
+    private static final int maxFunctions = ClojureFunctionCache.getInstance().getMaxSize();
+    private static final Map<String, FunctionMetrics> registry =
+            new LinkedHashMap<String, FunctionMetrics>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FunctionMetrics> eldest) {
+                    if (size() > maxFunctions) {
+                        unregister(eldest.getKey());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private final String hash;
+    private final AtomicLong inits = new AtomicLong();
+    private final AtomicLong compileNanos = new AtomicLong();
+    private final AtomicLong entriesRead = new AtomicLong();
+    private final AtomicLong entriesEmitted = new AtomicLong();
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicLong sampledInvocations = new AtomicLong();
+    private final AtomicLong sampledInvokeNanos = new AtomicLong();
+    private final AtomicLongArray invokeHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLong encodings = new AtomicLong();
+    private final AtomicLong sampledEncodings = new AtomicLong();
+    private final AtomicLong sampledEncodeNanos = new AtomicLong();
+    private final AtomicLong memoHits = new AtomicLong();
+    private final AtomicLong memoMisses = new AtomicLong();
+
+    private FunctionMetrics(String hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * Return the metrics for a function, creating and registering them with
+     * JMX the first time the function is seen.
+     *
+     * @param hash ClojureFunctionCache hash of the function source
+     * @return the shared metrics for that function
+     */
+    public static FunctionMetrics forFunction(String hash) {
+        // Only called from init, so a lock is cheap, and it keeps an MBean
+        // from being unregistered before it is registered.
+        synchronized (registry) {
+            FunctionMetrics metrics = registry.get(hash);
+            if (metrics != null) {
+                return metrics;
+            }
+
+            metrics = new FunctionMetrics(hash);
+            registry.put(hash, metrics);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName(hash));
+            } catch (Exception e) {
+                log.warn("Unable to register metrics for function " + hash + " with JMX", e);
+            }
+            return metrics;
+        }
+    }
+
+    static ObjectName objectName(String hash) throws MalformedObjectNameException {
+        return new ObjectName("clojure_accumulo.iterators:type=FunctionMetrics,fn=" + hash);
+    }
+
+    private static void unregister(String hash) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(hash));
+        } catch (Exception e) {
+            log.warn("Unable to unregister metrics for function " + hash + " from JMX", e);
+        }
+    }
+
+    /**
+     * @return metrics for every function still kept
+     */
+    public static Collection<FunctionMetrics> getAll() {
+        synchronized (registry) {
+            return new ArrayList<FunctionMetrics>(registry.values());
+        }
+    }
+
+    void addInit(long nanos) {
+        inits.incrementAndGet();
+        compileNanos.addAndGet(nanos);
+    }
+
+    void add(long read, long emitted, long invoked, long sampled, long sampledNanos, long[] histogram,
+             long encoded, long encodeSampled, long encodeSampledNanos) {
+        entriesRead.addAndGet(read);
+        entriesEmitted.addAndGet(emitted);
+        invocations.addAndGet(invoked);
+        sampledInvocations.addAndGet(sampled);
+        sampledInvokeNanos.addAndGet(sampledNanos);
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            if (histogram[i] != 0) {
+                invokeHistogram.addAndGet(i, histogram[i]);
+            }
+        }
+        encodings.addAndGet(encoded);
+        sampledEncodings.addAndGet(encodeSampled);
+        sampledEncodeNanos.addAndGet(encodeSampledNanos);
+    }
+
+    void addMemo(long hits, long misses) {
+        memoHits.addAndGet(hits);
+        memoMisses.addAndGet(misses);
+    }
+
+    public String getFunctionHash() {
+        return hash;
+    }
+
+    public long getInits() {
+        return inits.get();
+    }
+
+    /**
+     * @return time spent obtaining the function in init, which is the compile
+     * time on a cache miss and a lookup otherwise
+     */
+    public long getCompileNanos() {
+        return compileNanos.get();
+    }
+
+    public long getEntriesRead() {
+        return entriesRead.get();
+    }
+
+    public long getEntriesEmitted() {
+        return entriesEmitted.get();
+    }
+
+    public long getInvocations() {
+        return invocations.get();
+    }
+
+    public long getSampledInvocations() {
+        return sampledInvocations.get();
+    }
+
+    public long getSampledInvokeNanos() {
+        return sampledInvokeNanos.get();
+    }
+
+    public long getEstimatedInvokeNanos() {
+        long sampled = sampledInvocations.get();
+        return (sampled == 0) ? 0 : (long) ((double) sampledInvokeNanos.get() * invocations.get() / sampled);
+    }
+
+    public long[] getInvokeHistogram() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            histogram[i] = invokeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    public long getEncodings() {
+        return encodings.get();
+    }
+
+    public long getSampledEncodings() {
+        return sampledEncodings.get();
+    }
+
+    public long getSampledEncodeNanos() {
+        return sampledEncodeNanos.get();
+    }
+
+    /**
+     * @return lookups of a rowFn result (see FunctionState) that were
+     * already known
+     */
+    public long getMemoHits() {
+        return memoHits.get();
+    }
+
+    /**
+     * @return lookups of a rowFn result that ran rowFn
+     */
+    public long getMemoMisses() {
+        return memoMisses.get();
+    }
+
+    public void reset() {
+        inits.set(0);
+        compileNanos.set(0);
+        entriesRead.set(0);
+        entriesEmitted.set(0);
+        invocations.set(0);
+        sampledInvocations.set(0);
+        sampledInvokeNanos.set(0);
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            invokeHistogram.set(i, 0);
+        }
+        encodings.set(0);
+        sampledEncodings.set(0);
+        sampledEncodeNanos.set(0);
+        memoHits.set(0);
+        memoMisses.set(0);
+    }
+}
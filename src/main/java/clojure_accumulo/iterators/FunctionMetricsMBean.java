@@ -0,0 +1,38 @@
+package clojure_accumulo.iterators;
+
+/**
+ * JMX view of FunctionMetrics.
+ */
+public interface FunctionMetricsMBean {
+    String getFunctionHash();
+
+    long getInits();
+
+    long getCompileNanos();
+
+    long getEntriesRead();
+
+    long getEntriesEmitted();
+
+    long getInvocations();
+
+    long getSampledInvocations();
+
+    long getSampledInvokeNanos();
+
+    long getEstimatedInvokeNanos();
+
+    long[] getInvokeHistogram();
+
+    long getEncodings();
+
+    long getSampledEncodings();
+
+    long getSampledEncodeNanos();
+
+    long getMemoHits();
+
+    long getMemoMisses();
+
+    void reset();
+}
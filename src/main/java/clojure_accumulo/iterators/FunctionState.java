@@ -0,0 +1,116 @@
+package clojure_accumulo.iterators;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import clojure.lang.IFn;
+import org.apache.accumulo.core.data.Key;
+import org.apache.hadoop.io.Text;
+
+/**
+ * What an iterator's function is passed besides the entry, so that it need
+ * not rebuild lookup tables or per-row derivations for every entry.
+ *
+ * setup      a function of no arguments, run once when the iterator is
+ *            initialized, whose result is passed to every invocation
+ * rowFn      a function of a Key (and the setup result, if there is one),
+ *            run once per row, whose result is passed to every invocation on
+ *            an entry of that row
+ *
+ * With setup, the function is called as (f kv state), with rowFn as
+ * (f kv row), and with both as (f kv state row).  Entries of a row arrive
+ * together and the iterators forget everything when sought, so only the
+ * result for the current row is kept; hits and misses are counted in the
+ * FunctionMetrics for the function.  rowFn must depend on nothing but the
+ * row of the key it is given.
+ *
+ * States are only created when setup or rowFn is set, so iterators without
+ * them pay nothing.
+ */
+final class FunctionState {
+    static final String setupOption = "setup";
+    static final String rowFnOption = "rowFn";
+
+    private final boolean hasSetup;
+    private final Object state;
+    private final IFn rowFn;
+    private final Text lastRow = new Text();
+    private boolean hasLastRow;
+    private Object lastRowValue;
+
+    FunctionState(boolean hasSetup, Object state, IFn rowFn) {
+        this.hasSetup = hasSetup;
+        this.state = state;
+        this.rowFn = rowFn;
+    }
+
+    /**
+     * Read the state options and run setup.
+     *
+     * @param iteratorName name of the iterator, for error messages
+     * @param options iterator options
+     * @return the state, or null if neither setup nor rowFn is set
+     */
+    static FunctionState create(String iteratorName, Map<String, String> options) {
+        boolean hasSetup = ClojureIteratorUtils.hasFn(options, setupOption);
+        boolean hasRowFn = ClojureIteratorUtils.hasFn(options, rowFnOption);
+        if (!hasSetup && !hasRowFn) {
+            return null;
+        }
+
+        Object state = hasSetup ? ClojureIteratorUtils.getFn(options, setupOption, iteratorName).invoke() : null;
+        IFn rowFn = hasRowFn ? ClojureIteratorUtils.getFn(options, rowFnOption, iteratorName) : null;
+
+        return new FunctionState(hasSetup, state, rowFn);
+    }
+
+    static Map<String, String> describeOptions() {
+        Map<String, String> namedOptions = new HashMap<String, String>();
+        namedOptions.put(setupOption, "Optional string containing a function of no arguments, run once at init, whose result is passed to each invocation");
+        namedOptions.put(rowFnOption, "Optional string containing a function of a Key, run once per row, whose result is passed to each invocation");
+        return namedOptions;
+    }
+
+    /**
+     * @return the same setup result with nothing remembered, for a deepCopy
+     */
+    FunctionState copy() {
+        return new FunctionState(hasSetup, state, rowFn);
+    }
+
+    /**
+     * Forget the rowFn result, when the iterator is sought.
+     */
+    void reset() {
+        hasLastRow = false;
+        lastRowValue = null;
+    }
+
+    private Object rowValue(Key k, IteratorStats stats) {
+        if (hasLastRow && k.compareRow(lastRow) == 0) {
+            stats.memoHit();
+            return lastRowValue;
+        }
+
+        stats.memoMiss();
+        lastRowValue = hasSetup ? rowFn.invoke(k, state) : rowFn.invoke(k);
+        k.getRow(lastRow);
+        hasLastRow = true;
+        return lastRowValue;
+    }
+
+    /**
+     * Invoke f on an entry with the setup result and the memoized rowFn
+     * result for its row.
+     *
+     * @param k the entry's key
+     */
+    Object invoke(IFn f, Object kv, Key k, IteratorStats stats) {
+        if (rowFn == null) {
+            return f.invoke(kv, state);
+        }
+
+        Object rowValue = rowValue(k, stats);
+        return hasSetup ? f.invoke(kv, state, rowValue) : f.invoke(kv, rowValue);
+    }
+}
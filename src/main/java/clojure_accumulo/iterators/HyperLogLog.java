@@ -0,0 +1,118 @@
+package clojure_accumulo.iterators;
+
+/**
+ * Estimates the number of distinct values added, in 2^precision bytes.
+ *
+ * The standard error is about 1.04 / sqrt(2^precision), so the default
+ * precision of 12 (4KB) is within about 1.6%.  Small counts use linear
+ * counting, which is close to exact.
+ *
+ * (doto (HyperLogLog.) (.add "a") (.add "b") (.add "a"))
+ *
+ * has a cardinality of 2.
+ */
+public final class HyperLogLog extends Sketch {
+    public static final int defaultPrecision = 12;
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(defaultPrecision);
+    }
+
+    /**
+     * @param precision log2 of the number of registers, from 4 to 18
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("HyperLogLog precision must be from 4 to 18");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    @Override
+    public void add(Object item) {
+        addHash(hash(item));
+    }
+
+    void addHash(long h) {
+        int index = (int) (h >>> (64 - precision));
+        long w = (h << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public long cardinality() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+
+        double alpha;
+        if (m == 16) {
+            alpha = 0.673;
+        } else if (m == 32) {
+            alpha = 0.697;
+        } else if (m == 64) {
+            alpha = 0.709;
+        } else {
+            alpha = 0.7213 / (1 + 1.079 / m);
+        }
+
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    @Override
+    public Sketch merge(Sketch other) {
+        if (!(other instanceof HyperLogLog) || ((HyperLogLog) other).precision != precision) {
+            throw new IllegalArgumentException("can only merge a HyperLogLog of precision " + precision);
+        }
+
+        byte[] otherRegisters = ((HyperLogLog) other).registers;
+        for (int i = 0; i < registers.length; i++) {
+            if (otherRegisters[i] > registers[i]) {
+                registers[i] = otherRegisters[i];
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        BinaryValueCodec.Output out = header(HYPER_LOG_LOG);
+        out.write(precision);
+        out.write(registers);
+        return finish(out);
+    }
+
+    static HyperLogLog read(BinaryValueCodec.Input in) {
+        HyperLogLog hll = new HyperLogLog(in.buf[in.pos++]);
+        System.arraycopy(in.buf, in.pos, hll.registers, 0, hll.registers.length);
+        in.pos += hll.registers.length;
+        return hll;
+    }
+
+    @Override
+    public String toString() {
+        return "#<HyperLogLog " + cardinality() + ">";
+    }
+}
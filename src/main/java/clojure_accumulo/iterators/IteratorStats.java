@@ -0,0 +1,226 @@
+package clojure_accumulo.iterators;
+
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counters owned by a single iterator instance.
+ *
+ * An iterator is only ever used by one thread at a time, so these are plain
+ * fields.  They are added to the process-wide FunctionMetrics for the
+ * iterator's function every few thousand entries, on every seek, and when the
+ * iterator runs out of entries.  At that last point the totals for the scan,
+ * with its elapsed time and throughput, are also logged if the logMetrics
+ * option is true.
+ */
+final class IteratorStats {
+    static final String logMetricsOption = "logMetrics";
+
+    private static final Logger log = Logger.getLogger(IteratorStats.class);
+    private static final int sampleMask = 15;
+    private static final int flushInterval = 4096;
+    private static final long notSampled = Long.MIN_VALUE;
+
+    private final String iteratorName;
+    private final FunctionMetrics metrics;
+    private final boolean logScans;
+
+    private long read;
+    private long emitted;
+    private long invocations;
+    private long sampledInvocations;
+    private long sampledInvokeNanos;
+    private final long[] histogram = new long[FunctionMetrics.HISTOGRAM_BUCKETS];
+    private long encodings;
+    private long sampledEncodings;
+    private long sampledEncodeNanos;
+    private long memoHits;
+    private long memoMisses;
+
+    private long scanRead;
+    private long scanEmitted;
+    private long scanInvocations;
+    private long scanSampledInvocations;
+    private long scanSampledInvokeNanos;
+    private long scanMemoHits;
+    private long scanMemoMisses;
+    private long scanStartNanos;
+    private boolean finished;
+
+    IteratorStats(String iteratorName, FunctionMetrics metrics, boolean logScans) {
+        this.iteratorName = iteratorName;
+        this.metrics = metrics;
+        this.logScans = logScans;
+    }
+
+    /**
+     * Create the stats for an iterator whose function was just obtained in
+     * init.
+     *
+     * @param iteratorName name of the iterator, for logging
+     * @param options iterator options
+     * @param fnOption option holding the function source, or with -ref, its var
+     * @param initNanos time spent obtaining the function
+     * @return stats reporting to the metrics for that function
+     */
+    static IteratorStats create(String iteratorName, Map<String, String> options, String fnOption, long initNanos) {
+        return create(iteratorName, options, fnOption, initNanos, false);
+    }
+
+    /**
+     * As create, but log each scan whatever the logMetrics option says if
+     * alwaysLog is true.
+     */
+    static IteratorStats create(String iteratorName, Map<String, String> options, String fnOption, long initNanos, boolean alwaysLog) {
+        FunctionMetrics metrics = FunctionMetrics.forFunction(ClojureFunctionCache.hash(ClojureIteratorUtils.getFnIdentity(options, fnOption)));
+        metrics.addInit(initNanos);
+        return new IteratorStats(iteratorName, metrics, alwaysLog || Boolean.parseBoolean(options.get(logMetricsOption)));
+    }
+
+    /**
+     * @return fresh stats reporting to the same metrics, for a deepCopy
+     */
+    IteratorStats copy() {
+        return new IteratorStats(iteratorName, metrics, logScans);
+    }
+
+    FunctionMetrics getMetrics() {
+        return metrics;
+    }
+
+    void read() {
+        if (scanStartNanos == 0) {
+            scanStartNanos = System.nanoTime();
+        }
+        finished = false;
+        if (++read >= flushInterval) {
+            flush();
+        }
+    }
+
+    void emitted() {
+        emitted++;
+    }
+
+    /**
+     * Call just before invoking the function.
+     *
+     * @return a start time to pass to endInvoke
+     */
+    long startInvoke() {
+        return ((invocations++ & sampleMask) == 0) ? System.nanoTime() : notSampled;
+    }
+
+    void endInvoke(long start) {
+        if (start != notSampled) {
+            long nanos = System.nanoTime() - start;
+            sampledInvocations++;
+            sampledInvokeNanos += nanos;
+            histogram[Math.min(64 - Long.numberOfLeadingZeros(nanos), histogram.length - 1)]++;
+        }
+    }
+
+    /**
+     * Count a lookup of a per-row result that was already known.
+     */
+    void memoHit() {
+        memoHits++;
+    }
+
+    /**
+     * Count a lookup of a per-row result that had to be computed.
+     */
+    void memoMiss() {
+        memoMisses++;
+    }
+
+    /**
+     * Call just before encoding a result as a Value.
+     *
+     * @return a start time to pass to endEncode
+     */
+    long startEncode() {
+        return ((encodings++ & sampleMask) == 0) ? System.nanoTime() : notSampled;
+    }
+
+    void endEncode(long start) {
+        if (start != notSampled) {
+            sampledEncodings++;
+            sampledEncodeNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Add everything counted so far to the shared metrics.
+     */
+    void flush() {
+        if (read == 0 && invocations == 0 && encodings == 0 && emitted == 0 && memoHits == 0 && memoMisses == 0) {
+            return;
+        }
+
+        metrics.add(read, emitted, invocations, sampledInvocations, sampledInvokeNanos, histogram,
+                encodings, sampledEncodings, sampledEncodeNanos);
+        if (memoHits != 0 || memoMisses != 0) {
+            metrics.addMemo(memoHits, memoMisses);
+        }
+
+        scanRead += read;
+        scanEmitted += emitted;
+        scanInvocations += invocations;
+        scanSampledInvocations += sampledInvocations;
+        scanSampledInvokeNanos += sampledInvokeNanos;
+        scanMemoHits += memoHits;
+        scanMemoMisses += memoMisses;
+
+        read = 0;
+        emitted = 0;
+        invocations = 0;
+        sampledInvocations = 0;
+        sampledInvokeNanos = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = 0;
+        }
+        encodings = 0;
+        sampledEncodings = 0;
+        sampledEncodeNanos = 0;
+        memoHits = 0;
+        memoMisses = 0;
+    }
+
+    /**
+     * Call when the iterator runs out of entries.
+     */
+    void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        flush();
+
+        if (logScans && log.isInfoEnabled()) {
+            long estimatedNanos = (scanSampledInvocations == 0) ? 0 :
+                    (long) ((double) scanSampledInvokeNanos * scanInvocations / scanSampledInvocations);
+            long elapsedNanos = (scanStartNanos == 0) ? 0 : System.nanoTime() - scanStartNanos;
+            log.info(iteratorName + " fn=" + metrics.getFunctionHash() +
+                    " read=" + scanRead +
+                    " emitted=" + scanEmitted +
+                    " invocations=" + scanInvocations +
+                    " estimatedFnMillis=" + estimatedNanos / 1000000 +
+                    " elapsedMillis=" + elapsedNanos / 1000000 +
+                    " readPerSecond=" + ((elapsedNanos == 0) ? 0 : scanRead * 1000000000L / elapsedNanos) +
+                    ((scanMemoHits + scanMemoMisses == 0) ? "" :
+                            " memoHits=" + scanMemoHits + " memoMisses=" + scanMemoMisses));
+        }
+
+        scanRead = 0;
+        scanEmitted = 0;
+        scanInvocations = 0;
+        scanSampledInvocations = 0;
+        scanSampledInvokeNanos = 0;
+        scanMemoHits = 0;
+        scanMemoMisses = 0;
+        scanStartNanos = 0;
+    }
+}
@@ -0,0 +1,147 @@
+package clojure_accumulo.iterators;
+
+import java.util.Map;
+
+import clojure.lang.ILookup;
+import clojure.lang.Indexed;
+import clojure.lang.Keyword;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+
+/**
+ * A read-only view of a key-value pair that an iterator reuses for every
+ * entry it hands to a Clojure function, instead of allocating a KeyValue and
+ * copying the value bytes each time.
+ *
+ * The view destructures like a map entry, so (fn [[k v]] ...) keeps working,
+ * and also supports keyword lookup of the parts of the entry as ByteSequences
+ * that share the underlying bytes:
+ *
+ * (fn [e]
+ *   (= (:family e) (ArrayByteSequence. "meta")))
+ *
+ * Lookups understand :key, :value, :row, :family, :qualifier, :visibility,
+ * :timestamp and :deleted.  :value is a ByteSequence over the value bytes,
+ * while (val e) is the Value itself.
+ *
+ * Because the view changes as the iterator advances, a function must not hold
+ * on to it, or to anything it returns, after the call.
+ */
+public final class KeyValueView implements Map.Entry<Key, Value>, ILookup, Indexed {
+    private static final Keyword keyKeyword = Keyword.intern("key");
+    private static final Keyword valueKeyword = Keyword.intern("value");
+    private static final Keyword rowKeyword = Keyword.intern("row");
+    private static final Keyword familyKeyword = Keyword.intern("family");
+    private static final Keyword qualifierKeyword = Keyword.intern("qualifier");
+    private static final Keyword visibilityKeyword = Keyword.intern("visibility");
+    private static final Keyword timestampKeyword = Keyword.intern("timestamp");
+    private static final Keyword deletedKeyword = Keyword.intern("deleted");
+
+    /**
+     * An ArrayByteSequence that can be pointed at a different array.
+     */
+    private static final class Slice extends ArrayByteSequence {
+        Slice() {
+            super(new byte[0]);
+        }
+
+        void set(byte[] data) {
+            this.data = data;
+            this.offset = 0;
+            this.length = data.length;
+        }
+    }
+
+    private Key key;
+    private Value value;
+    private final Slice valueSlice = new Slice();
+    private boolean valueSliceSet;
+
+    /**
+     * Point the view at a new entry.
+     *
+     * @param key key of the entry
+     * @param value value of the entry
+     * @return this view
+     */
+    public KeyValueView set(Key key, Value value) {
+        this.key = key;
+        this.value = value;
+        this.valueSliceSet = false;
+        return this;
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    public Value setValue(Value value) {
+        throw new UnsupportedOperationException("KeyValueView is read-only");
+    }
+
+    public Object valAt(Object k) {
+        return valAt(k, null);
+    }
+
+    public Object valAt(Object k, Object notFound) {
+        if (k == rowKeyword) {
+            return key.getRowData();
+        } else if (k == familyKeyword) {
+            return key.getColumnFamilyData();
+        } else if (k == qualifierKeyword) {
+            return key.getColumnQualifierData();
+        } else if (k == visibilityKeyword) {
+            return key.getColumnVisibilityData();
+        } else if (k == timestampKeyword) {
+            return key.getTimestamp();
+        } else if (k == valueKeyword) {
+            if (!valueSliceSet) {
+                valueSlice.set(value.get());
+                valueSliceSet = true;
+            }
+            return valueSlice;
+        } else if (k == keyKeyword) {
+            return key;
+        } else if (k == deletedKeyword) {
+            return key.isDeleted();
+        }
+
+        return notFound;
+    }
+
+    public Object nth(int i) {
+        switch (i) {
+            case 0:
+                return key;
+            case 1:
+                return value;
+            default:
+                throw new IndexOutOfBoundsException();
+        }
+    }
+
+    public Object nth(int i, Object notFound) {
+        switch (i) {
+            case 0:
+                return key;
+            case 1:
+                return value;
+            default:
+                return notFound;
+        }
+    }
+
+    public int count() {
+        return 2;
+    }
+
+    @Override
+    public String toString() {
+        return key + " " + value;
+    }
+}
@@ -0,0 +1,169 @@
+package clojure_accumulo.iterators;
+
+/**
+ * How numbers are stored in Values for ClojureCombiner's numeric mode.
+ *
+ * The names and layouts match LongCombiner.Type: VARLEN is Hadoop's
+ * WritableUtils variable length long, FIXEDLEN is eight big-endian bytes and
+ * STRING is the decimal string.  Decoding reads straight from the Value's
+ * backing array, without copying or boxing.  Doubles are stored as the eight
+ * bytes of their IEEE 754 bits (FIXEDLEN) or as a string; VARLEN only applies
+ * to longs.
+ */
+public enum NumberType {
+    VARLEN {
+        @Override
+        public long decodeLong(byte[] b, int offset, int length) {
+            byte first = b[offset];
+            if (first >= -112) {
+                return first;
+            }
+
+            boolean negative = first < -120;
+            int size = negative ? -(first + 120) : -(first + 112);
+            if (size != length - 1) {
+                throw new IllegalArgumentException("bad VARLEN value of " + length + " bytes");
+            }
+
+            long l = 0;
+            for (int i = 1; i <= size; i++) {
+                l = (l << 8) | (b[offset + i] & 0xff);
+            }
+            return negative ? ~l : l;
+        }
+
+        @Override
+        public byte[] encodeLong(long l) {
+            if (l >= -112 && l <= 127) {
+                return new byte[] {(byte) l};
+            }
+
+            int first = -112;
+            if (l < 0) {
+                l = ~l;
+                first = -120;
+            }
+
+            int size = 0;
+            for (long tmp = l; tmp != 0; tmp >>>= 8) {
+                size++;
+            }
+
+            byte[] b = new byte[size + 1];
+            b[0] = (byte) (first - size);
+            for (int i = size; i > 0; i--) {
+                b[i] = (byte) l;
+                l >>>= 8;
+            }
+            return b;
+        }
+
+        @Override
+        public double decodeDouble(byte[] b, int offset, int length) {
+            throw new IllegalArgumentException("VARLEN only applies to longs");
+        }
+
+        @Override
+        public byte[] encodeDouble(double d) {
+            throw new IllegalArgumentException("VARLEN only applies to longs");
+        }
+    },
+
+    FIXEDLEN {
+        @Override
+        public long decodeLong(byte[] b, int offset, int length) {
+            if (length != 8) {
+                throw new IllegalArgumentException("FIXEDLEN values must be 8 bytes, not " + length);
+            }
+
+            long l = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                l = (l << 8) | (b[i] & 0xff);
+            }
+            return l;
+        }
+
+        @Override
+        public byte[] encodeLong(long l) {
+            byte[] b = new byte[8];
+            for (int i = 7; i >= 0; i--) {
+                b[i] = (byte) l;
+                l >>>= 8;
+            }
+            return b;
+        }
+
+        @Override
+        public double decodeDouble(byte[] b, int offset, int length) {
+            return Double.longBitsToDouble(decodeLong(b, offset, length));
+        }
+
+        @Override
+        public byte[] encodeDouble(double d) {
+            return encodeLong(Double.doubleToLongBits(d));
+        }
+    },
+
+    STRING {
+        @Override
+        public long decodeLong(byte[] b, int offset, int length) {
+            if (length == 0) {
+                throw new NumberFormatException("empty STRING value");
+            }
+
+            int i = offset;
+            int end = offset + length;
+            boolean negative = b[i] == '-';
+            if (negative || b[i] == '+') {
+                i++;
+                if (i == end) {
+                    throw new NumberFormatException("bad STRING value");
+                }
+            }
+
+            // Accumulate negatively so that Long.MIN_VALUE parses.
+            long l = 0;
+            for (; i < end; i++) {
+                int digit = b[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("bad STRING value");
+                }
+                if (l < (Long.MIN_VALUE + digit) / 10) {
+                    throw new NumberFormatException("STRING value out of range");
+                }
+                l = l * 10 - digit;
+            }
+
+            if (negative) {
+                return l;
+            }
+            if (l == Long.MIN_VALUE) {
+                throw new NumberFormatException("STRING value out of range");
+            }
+            return -l;
+        }
+
+        @Override
+        public byte[] encodeLong(long l) {
+            return BinaryValueCodec.utf8(Long.toString(l));
+        }
+
+        @Override
+        public double decodeDouble(byte[] b, int offset, int length) {
+            return Double.parseDouble(BinaryValueCodec.utf8(b, offset, length));
+        }
+
+        @Override
+        public byte[] encodeDouble(double d) {
+            return BinaryValueCodec.utf8(Double.toString(d));
+        }
+    };
+
+    public abstract long decodeLong(byte[] b, int offset, int length);
+
+    public abstract byte[] encodeLong(long l);
+
+    public abstract double decodeDouble(byte[] b, int offset, int length);
+
+    public abstract byte[] encodeDouble(double d);
+}
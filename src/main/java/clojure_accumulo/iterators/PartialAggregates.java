@@ -0,0 +1,115 @@
+package clojure_accumulo.iterators;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import clojure.lang.IFn;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+
+/**
+ * Client side of an aggregation spread across tablets.
+ *
+ * With the partial option set to true, ClojureCombiner and
+ * ClojureGroupReducer skip their complete function and write each
+ * accumulator with ValueEncoding.BINARY, so that the partial results of every
+ * tablet can be merged on the client.  The combine option, which the
+ * iterators ignore, holds a function of two partials returning their merge;
+ * it must be associative and commutative, since partials arrive in no
+ * particular order.
+ *
+ * aggregate scans a table with a BatchScanner using such a setting, merges
+ * the partials with combine as they arrive and applies complete to the
+ * result:
+ *
+ * IteratorSetting is = new IteratorSetting(20, "sum", ClojureGroupReducer.class);
+ * is.addOption("f", "(fn [acc [k v]] (+ acc (Long/parseLong (String. (.get v)))))");
+ * is.addOption("val", "0");
+ * is.addOption("combine", "+");
+ * Object total = PartialAggregates.aggregate(conn, "foo", auths, ranges, 8, is);
+ */
+public final class PartialAggregates {
+    static final String partialOption = "partial";
+    static final String combineOption = "combine";
+    private static final String completeOption = "complete";
+
+    private PartialAggregates() {
+    }
+
+    /**
+     * @param options iterator options
+     * @return true if the iterator should emit partial results
+     */
+    static boolean isPartial(Map<String, String> options) {
+        return Boolean.parseBoolean(options.get(partialOption));
+    }
+
+    /**
+     * Merge partial results as they are read.
+     *
+     * @param entries entries written by an iterator with partial set
+     * @param combine function of two partials returning their merge
+     * @return the merged partial, or null if there were no entries
+     */
+    public static Object merge(Iterable<Map.Entry<Key, Value>> entries, IFn combine) {
+        Object acc = null;
+        boolean any = false;
+
+        for (Map.Entry<Key, Value> e : entries) {
+            Object partial = ValueEncoding.BINARY.decode(e.getValue());
+            if (any) {
+                acc = combine.invoke(acc, partial);
+            } else {
+                acc = partial;
+                any = true;
+            }
+        }
+
+        return acc;
+    }
+
+    /**
+     * Scan ranges of a table in parallel with a partial aggregation and
+     * merge the results.
+     *
+     * @param conn connector
+     * @param table table to scan
+     * @param auths authorizations for the scan
+     * @param ranges ranges to scan
+     * @param threads number of BatchScanner threads
+     * @param is setting of a ClojureCombiner or ClojureGroupReducer with a
+     * combine option; partial is set on a copy of it
+     * @return the merged result, after complete if the setting has one, or
+     * null if the ranges held nothing
+     */
+    public static Object aggregate(Connector conn, String table, Authorizations auths, Collection<Range> ranges, int threads, IteratorSetting is)
+            throws TableNotFoundException {
+        Map<String, String> options = new HashMap<String, String>(is.getOptions());
+        IFn combine = ClojureIteratorUtils.getFn(options, combineOption, "PartialAggregates");
+        IFn complete = null;
+        if (ClojureIteratorUtils.hasFn(options, completeOption)) {
+            complete = ClojureIteratorUtils.getFn(options, completeOption, "PartialAggregates");
+        }
+
+        options.put(partialOption, "true");
+        IteratorSetting partialSetting = new IteratorSetting(is.getPriority(), is.getName(), is.getIteratorClass(), options);
+
+        BatchScanner scanner = conn.createBatchScanner(table, auths, threads);
+        try {
+            scanner.setRanges(ranges);
+            scanner.addScanIterator(partialSetting);
+
+            Object acc = merge(scanner, combine);
+            return (acc != null && complete != null) ? complete.invoke(acc) : acc;
+        } finally {
+            scanner.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package clojure_accumulo.iterators;
+
+import clojure.lang.IDeref;
+
+/**
+ * Wraps the result of a reducing step to say that the reduction is finished
+ * and the remaining values should not be read, like clojure.core/reduced in
+ * later versions of Clojure.
+ *
+ * (fn [acc kv]
+ *   (if (< (count acc) 10)
+ *     (conj acc (String. (.get (val kv))))
+ *     (clojure_accumulo.iterators.Reduced. acc)))
+ *
+ * Values wrapped by clojure.lang.Reduced are recognized as well, so the same
+ * step function keeps working on a Clojure that has reduced.
+ */
+public final class Reduced implements IDeref {
+    private static final String clojureReduced = "clojure.lang.Reduced";
+    private final Object val;
+
+    public Reduced(Object val) {
+        this.val = val;
+    }
+
+    public Object deref() {
+        return val;
+    }
+
+    /**
+     * @param obj result of a reducing step
+     * @return true if obj says the reduction is finished
+     */
+    public static boolean isReduced(Object obj) {
+        return obj instanceof Reduced
+                || (obj instanceof IDeref && obj.getClass().getName().equals(clojureReduced));
+    }
+
+    /**
+     * @param obj result of a reducing step
+     * @return the value inside obj if it is reduced, otherwise obj
+     */
+    public static Object unwrap(Object obj) {
+        return isReduced(obj) ? ((IDeref) obj).deref() : obj;
+    }
+}
@@ -0,0 +1,184 @@
+package clojure_accumulo.iterators;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * A sorted set of rows, or of row prefixes, that an iterator can seek from
+ * one member to the next with rather than reading the rows in between.
+ *
+ * The rows option holds exact rows and the rowPrefixes option prefixes,
+ * either way written by encode: a varint count then each member's length
+ * and bytes, sorted and without duplicates, in Base64.  A prefix that
+ * starts with another prefix in the set is dropped, as it adds nothing, so
+ * the prefixes left never overlap and a row can only start with the one
+ * sorting just before it.
+ */
+final class RowSet {
+    static final String rowsOption = "rows";
+    static final String rowPrefixesOption = "rowPrefixes";
+
+    private static final Comparator<byte[]> byBytes = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            return WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length);
+        }
+    };
+
+    private final byte[][] members;
+    private final boolean prefixes;
+
+    private RowSet(byte[][] members, boolean prefixes) {
+        this.members = members;
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * Read the row set options.
+     *
+     * @param options iterator options
+     * @return the row set, or null if neither option is set
+     */
+    static RowSet create(Map<String, String> options) {
+        String rows = options.get(rowsOption);
+        String rowPrefixes = options.get(rowPrefixesOption);
+        if (rows != null && rowPrefixes != null) {
+            throw new IllegalArgumentException(rowsOption + " and " + rowPrefixesOption + " cannot both be set");
+        }
+        if (rows == null && rowPrefixes == null) {
+            return null;
+        }
+
+        byte[] bytes;
+        try {
+            bytes = Base64.decodeBase64(((rows != null) ? rows : rowPrefixes).getBytes("US-ASCII"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+
+        BinaryValueCodec.Input in = new BinaryValueCodec.Input(bytes, 0);
+        byte[][] members = new byte[(int) in.readVarint()][];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = in.readBytes();
+            if (i > 0 && byBytes.compare(members[i - 1], members[i]) >= 0) {
+                throw new IllegalArgumentException("the rows in " + (rows != null ? rowsOption : rowPrefixesOption) + " must be sorted, without duplicates");
+            }
+        }
+        return new RowSet(members, rows == null);
+    }
+
+    private static byte[] toBytes(Object row) {
+        if (row instanceof byte[]) {
+            return (byte[]) row;
+        } else if (row instanceof Text) {
+            return Arrays.copyOf(((Text) row).getBytes(), ((Text) row).getLength());
+        } else if (row instanceof ByteSequence) {
+            return ((ByteSequence) row).toArray();
+        } else if (row instanceof CharSequence) {
+            return BinaryValueCodec.utf8(row.toString());
+        }
+        throw new IllegalArgumentException("a row must be a String, Text, ByteSequence or byte array, not " + row);
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes.length >= prefix.length &&
+                WritableComparator.compareBytes(bytes, 0, prefix.length, prefix, 0, prefix.length) == 0;
+    }
+
+    /**
+     * Sort rows, drop duplicates (and prefixes covered by shorter ones) and
+     * write them for the rows or rowPrefixes option.
+     *
+     * @param rows Strings, Texts, ByteSequences or byte arrays
+     */
+    static String encode(Collection<?> rows, boolean prefixes) {
+        List<byte[]> sorted = new ArrayList<byte[]>(rows.size());
+        for (Object row : rows) {
+            sorted.add(toBytes(row));
+        }
+        Collections.sort(sorted, byBytes);
+
+        List<byte[]> members = new ArrayList<byte[]>(sorted.size());
+        for (byte[] row : sorted) {
+            if (!members.isEmpty()) {
+                byte[] last = members.get(members.size() - 1);
+                if (prefixes ? startsWith(row, last) : Arrays.equals(row, last)) {
+                    continue;
+                }
+            }
+            members.add(row);
+        }
+
+        BinaryValueCodec.Output out = new BinaryValueCodec.Output();
+        out.writeVarint(members.size());
+        for (byte[] row : members) {
+            out.writeVarint(row.length);
+            out.write(row);
+        }
+
+        try {
+            return new String(Base64.encodeBase64(out.toByteArray()), "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    int size() {
+        return members.length;
+    }
+
+    /**
+     * @return the ith member, in sorted order
+     */
+    byte[] get(int i) {
+        return members[i];
+    }
+
+    /**
+     * @return true if row is the ith member, or starts with it
+     */
+    boolean matches(int i, ByteSequence row) {
+        byte[] member = members[i];
+        if (prefixes ? row.length() < member.length : row.length() != member.length) {
+            return false;
+        }
+        return WritableComparator.compareBytes(row.getBackingArray(), row.offset(), member.length, member, 0, member.length) == 0;
+    }
+
+    /**
+     * Look up a row, as Arrays.binarySearch does.
+     *
+     * @return the index of the member matching row, or (-(next) - 1) where
+     * next is the index of the first member sorting after it
+     */
+    int find(ByteSequence row) {
+        byte[] rowBytes = row.getBackingArray();
+        int low = 0;
+        int high = members.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            byte[] member = members[mid];
+            if (WritableComparator.compareBytes(member, 0, member.length, rowBytes, row.offset(), row.length()) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        // members[low - 1] is the last member sorting at or before row.
+        if (low > 0 && matches(low - 1, row)) {
+            return low - 1;
+        }
+        return -low - 1;
+    }
+}
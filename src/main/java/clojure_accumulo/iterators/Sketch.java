@@ -0,0 +1,212 @@
+package clojure_accumulo.iterators;
+
+import org.apache.accumulo.core.data.Value;
+
+/**
+ * A fixed-size summary of many values that can be merged with others of the
+ * same kind and shape: HyperLogLog for distinct counts, TDigest for
+ * quantiles and CountMinSketch for frequencies.
+ *
+ * A sketch's bytes start with a nine byte header: three magic bytes, its
+ * kind, a format version and the length of the rest, so a Value holding one
+ * can be told apart from a plain value.  ClojureCombiner's sketch mode relies
+ * on this to merge sketches it wrote earlier with values that have not been
+ * added to one yet, and adds a value whose header matches but whose body
+ * does not parse as a plain value.  Every ValueEncoding writes a sketch
+ * returned by a Clojure function as its own bytes, and BINARY also writes
+ * sketches nested inside collections, so they can be accumulated by
+ * ClojureGroupReducer or a streaming ClojureCombiner and merged across
+ * tablets with PartialAggregates.
+ *
+ * Sketches are not thread safe.
+ */
+public abstract class Sketch {
+    static final byte magic0 = (byte) 0xc5;
+    static final byte magic1 = 'S';
+    static final byte magic2 = 'K';
+    static final byte HYPER_LOG_LOG = 'H';
+    static final byte T_DIGEST = 'T';
+    static final byte COUNT_MIN = 'C';
+    static final byte version = 1;
+    static final int headerLength = 9;
+
+    Sketch() {
+    }
+
+    /**
+     * Add a value to the sketch.
+     */
+    public abstract void add(Object item);
+
+    /**
+     * Merge another sketch of the same kind and shape into this one.
+     *
+     * @return this sketch
+     * @throws IllegalArgumentException if other cannot be merged into this
+     */
+    public abstract Sketch merge(Sketch other);
+
+    /**
+     * @return the sketch's bytes, header first
+     */
+    public abstract byte[] toBytes();
+
+    /**
+     * @return the sketch as a Value
+     */
+    public Value toValue() {
+        return new Value(toBytes(), false);
+    }
+
+    static BinaryValueCodec.Output header(byte kind) {
+        // Not the shared per-thread buffer, which may be part way through
+        // encoding a collection holding this sketch.
+        BinaryValueCodec.Output out = new BinaryValueCodec.Output();
+        out.write(magic0);
+        out.write(magic1);
+        out.write(magic2);
+        out.write(kind);
+        out.write(version);
+        // The length of the body, filled in by finish.
+        out.write(new byte[4]);
+        return out;
+    }
+
+    /**
+     * @return the bytes of a sketch written after header, with its length
+     */
+    static byte[] finish(BinaryValueCodec.Output out) {
+        byte[] bytes = out.toByteArray();
+        int bodyLength = bytes.length - headerLength;
+        for (int i = 0; i < 4; i++) {
+            bytes[headerLength - 1 - i] = (byte) (bodyLength >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * @return true if the bytes hold a whole sketch header of a known kind
+     * and version, with a length matching theirs
+     */
+    public static boolean isSketch(byte[] bytes, int offset, int length) {
+        if (length < headerLength || bytes[offset] != magic0 || bytes[offset + 1] != magic1 || bytes[offset + 2] != magic2) {
+            return false;
+        }
+
+        byte kind = bytes[offset + 3];
+        if ((kind != HYPER_LOG_LOG && kind != T_DIGEST && kind != COUNT_MIN) || bytes[offset + 4] != version) {
+            return false;
+        }
+
+        int bodyLength = 0;
+        for (int i = 5; i < headerLength; i++) {
+            bodyLength = (bodyLength << 8) | (bytes[offset + i] & 0xff);
+        }
+        return bodyLength == length - headerLength;
+    }
+
+    /**
+     * Read a sketch written by toBytes.
+     *
+     * @throws IllegalArgumentException if the bytes do not hold a sketch
+     */
+    public static Sketch fromBytes(byte[] bytes, int offset, int length) {
+        if (!isSketch(bytes, offset, length)) {
+            throw new IllegalArgumentException("not a sketch");
+        }
+
+        BinaryValueCodec.Input in = new BinaryValueCodec.Input(bytes, offset + headerLength);
+        Sketch sketch;
+        try {
+            switch (bytes[offset + 3]) {
+                case HYPER_LOG_LOG:
+                    sketch = HyperLogLog.read(in);
+                    break;
+                case T_DIGEST:
+                    sketch = TDigest.read(in);
+                    break;
+                default:
+                    sketch = CountMinSketch.read(in);
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // Bytes that only look like a sketch can run off the end or ask
+            // for an absurd size.
+            throw new IllegalArgumentException("not a sketch", e);
+        }
+
+        if (in.pos != offset + length) {
+            throw new IllegalArgumentException("trailing bytes after sketch");
+        }
+        return sketch;
+    }
+
+    /**
+     * Read a sketch from a Value.
+     */
+    public static Sketch fromValue(Value value) {
+        byte[] bytes = value.get();
+        return fromBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Hash the bytes of an item: the bytes of a Value or byte array, the
+     * UTF-8 of a String, the eight bytes of an integer and the printed form of
+     * anything else.
+     */
+    static long hash(Object item) {
+        byte[] bytes;
+        if (item instanceof byte[]) {
+            bytes = (byte[]) item;
+        } else if (item instanceof Value) {
+            bytes = ((Value) item).get();
+        } else if (item instanceof String) {
+            bytes = BinaryValueCodec.utf8((String) item);
+        } else if (item instanceof Long || item instanceof Integer || item instanceof Short || item instanceof Byte) {
+            return mix(((Number) item).longValue() * 0xc6a4a7935bd1e995L);
+        } else {
+            bytes = BinaryValueCodec.utf8(clojure.lang.RT.printString(item));
+        }
+        return hash(bytes, 0, bytes.length);
+    }
+
+    /**
+     * MurmurHash64A.
+     */
+    static long hash(byte[] b, int offset, int length) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        long h = 0x9747b28cL ^ (length * m);
+
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            long k = (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8 | (b[i + 2] & 0xffL) << 16 | (b[i + 3] & 0xffL) << 24 |
+                    (b[i + 4] & 0xffL) << 32 | (b[i + 5] & 0xffL) << 40 | (b[i + 6] & 0xffL) << 48 | (b[i + 7] & 0xffL) << 56;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+
+        int rest = length & 7;
+        if (rest > 0) {
+            for (int i = rest - 1; i >= 0; i--) {
+                h ^= (b[end + i] & 0xffL) << (8 * i);
+            }
+            h *= m;
+        }
+
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        final long m = 0xc6a4a7935bd1e995L;
+        h ^= h >>> 47;
+        h *= m;
+        h ^= h >>> 47;
+        return h;
+    }
+}
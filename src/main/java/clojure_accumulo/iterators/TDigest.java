@@ -0,0 +1,259 @@
+package clojure_accumulo.iterators;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import clojure.lang.RT;
+
+/**
+ * Estimates quantiles of the numbers added, keeping at most a few times
+ * compression centroids however many numbers there are.
+ *
+ * Centroids near the tails hold few points and those near the median many,
+ * so extreme quantiles stay accurate.  Points are buffered and merged into
+ * the centroids in batches.
+ *
+ * (let [d (TDigest.)]
+ *   (doseq [x (range 1000)] (.add d x))
+ *   (.quantile d 0.99))
+ *
+ * is close to 990.
+ */
+public final class TDigest extends Sketch {
+    public static final double defaultCompression = 100;
+    private final double compression;
+    private double[] means;
+    private long[] weights;
+    private int size;
+    private final double[] pendingMeans;
+    private final long[] pendingWeights;
+    private int pending;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private static final class Centroid {
+        final double mean;
+        final long weight;
+
+        Centroid(double mean, long weight) {
+            this.mean = mean;
+            this.weight = weight;
+        }
+    }
+
+    private static final Comparator<Centroid> byMean = new Comparator<Centroid>() {
+        public int compare(Centroid a, Centroid b) {
+            return Double.compare(a.mean, b.mean);
+        }
+    };
+
+    public TDigest() {
+        this(defaultCompression);
+    }
+
+    /**
+     * @param compression roughly, the number of centroids to keep; larger is
+     * more accurate
+     */
+    public TDigest(double compression) {
+        if (!(compression >= 10)) {
+            throw new IllegalArgumentException("TDigest compression must be at least 10");
+        }
+        this.compression = compression;
+        this.means = new double[0];
+        this.weights = new long[0];
+        int bufferSize = (int) Math.ceil(compression) * 5;
+        this.pendingMeans = new double[bufferSize];
+        this.pendingWeights = new long[bufferSize];
+    }
+
+    public double getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return the number of points added
+     */
+    public long count() {
+        return count;
+    }
+
+    public double min() {
+        return min;
+    }
+
+    public double max() {
+        return max;
+    }
+
+    @Override
+    public void add(Object item) {
+        add(RT.doubleCast(item), 1);
+    }
+
+    public void add(double x, long weight) {
+        if (Double.isNaN(x)) {
+            throw new IllegalArgumentException("cannot add NaN to a TDigest");
+        }
+        if (pending == pendingMeans.length) {
+            compress();
+        }
+
+        pendingMeans[pending] = x;
+        pendingWeights[pending] = weight;
+        pending++;
+        count += weight;
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+    }
+
+    /**
+     * Merge the buffered points into the centroids.
+     */
+    private void compress() {
+        if (pending == 0) {
+            return;
+        }
+
+        Centroid[] all = new Centroid[size + pending];
+        for (int i = 0; i < size; i++) {
+            all[i] = new Centroid(means[i], weights[i]);
+        }
+        for (int i = 0; i < pending; i++) {
+            all[size + i] = new Centroid(pendingMeans[i], pendingWeights[i]);
+        }
+        pending = 0;
+        Arrays.sort(all, byMean);
+
+        double[] newMeans = new double[all.length];
+        long[] newWeights = new long[all.length];
+        int n = 0;
+        long before = 0;
+        double mean = all[0].mean;
+        long weight = all[0].weight;
+
+        for (int i = 1; i < all.length; i++) {
+            long proposed = weight + all[i].weight;
+            double q = (before + proposed / 2.0) / count;
+            double limit = 4 * count * q * (1 - q) / compression;
+
+            if (proposed <= limit) {
+                mean += (all[i].mean - mean) * all[i].weight / proposed;
+                weight = proposed;
+            } else {
+                newMeans[n] = mean;
+                newWeights[n] = weight;
+                n++;
+                before += weight;
+                mean = all[i].mean;
+                weight = all[i].weight;
+            }
+        }
+        newMeans[n] = mean;
+        newWeights[n] = weight;
+        n++;
+
+        means = Arrays.copyOf(newMeans, n);
+        weights = Arrays.copyOf(newWeights, n);
+        size = n;
+    }
+
+    /**
+     * @param q quantile from 0 to 1
+     * @return the estimated value at q, or NaN if nothing has been added
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile must be from 0 to 1");
+        }
+
+        compress();
+        if (size == 0) {
+            return Double.NaN;
+        } else if (size == 1) {
+            return means[0];
+        }
+
+        double index = q * count;
+        double firstHalf = weights[0] / 2.0;
+        if (index < firstHalf) {
+            return min + (means[0] - min) * index / firstHalf;
+        }
+
+        // Interpolate between the centres of neighbouring centroids.
+        double centre = firstHalf;
+        for (int i = 0; i < size - 1; i++) {
+            double gap = (weights[i] + weights[i + 1]) / 2.0;
+            if (centre + gap > index) {
+                return means[i] + (means[i + 1] - means[i]) * (index - centre) / gap;
+            }
+            centre += gap;
+        }
+
+        int last = size - 1;
+        double lastHalf = weights[last] / 2.0;
+        return means[last] + (max - means[last]) * Math.min(1, (index - centre) / lastHalf);
+    }
+
+    @Override
+    public Sketch merge(Sketch other) {
+        if (!(other instanceof TDigest)) {
+            throw new IllegalArgumentException("can only merge a TDigest");
+        }
+
+        TDigest digest = (TDigest) other;
+        digest.compress();
+        for (int i = 0; i < digest.size; i++) {
+            add(digest.means[i], digest.weights[i]);
+        }
+        if (digest.count > 0) {
+            min = Math.min(min, digest.min);
+            max = Math.max(max, digest.max);
+        }
+        return this;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        compress();
+
+        BinaryValueCodec.Output out = header(T_DIGEST);
+        out.writeFixedLong(Double.doubleToLongBits(compression));
+        out.writeFixedLong(Double.doubleToLongBits(min));
+        out.writeFixedLong(Double.doubleToLongBits(max));
+        out.writeVarint(size);
+        for (int i = 0; i < size; i++) {
+            out.writeFixedLong(Double.doubleToLongBits(means[i]));
+            out.writeVarint(weights[i]);
+        }
+        return finish(out);
+    }
+
+    static TDigest read(BinaryValueCodec.Input in) {
+        TDigest digest = new TDigest(Double.longBitsToDouble(in.readFixedLong()));
+        digest.min = Double.longBitsToDouble(in.readFixedLong());
+        digest.max = Double.longBitsToDouble(in.readFixedLong());
+
+        long n = in.readVarint();
+        // Every centroid takes at least nine bytes.
+        if (n < 0 || n > (in.buf.length - in.pos) / 9) {
+            throw new IllegalArgumentException("TDigest too big for its bytes");
+        }
+        int size = (int) n;
+        digest.means = new double[size];
+        digest.weights = new long[size];
+        for (int i = 0; i < size; i++) {
+            digest.means[i] = Double.longBitsToDouble(in.readFixedLong());
+            digest.weights[i] = in.readVarint();
+            digest.count += digest.weights[i];
+        }
+        digest.size = size;
+        return digest;
+    }
+
+    @Override
+    public String toString() {
+        return "#<TDigest " + count + " points>";
+    }
+}
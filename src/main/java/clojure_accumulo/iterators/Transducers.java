@@ -0,0 +1,129 @@
+package clojure_accumulo.iterators;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+
+/**
+ * Transducers for ClojurePipeline on versions of Clojure that do not have
+ * them.  Each returns a function that takes a reducing function and returns
+ * a new one, with the same arities as the transducers in clojure.core from
+ * 1.7 on, so they compose with comp and mix freely with those:
+ *
+ * (import '[clojure_accumulo.iterators Transducers])
+ * (comp (Transducers/filtering pred) (Transducers/mapping f))
+ *
+ * is (comp (filter pred) (map f)).
+ */
+public final class Transducers {
+    private Transducers() {
+    }
+
+    /**
+     * A reducing function that passes init and completion through to rf.
+     */
+    private abstract static class Step extends AFn {
+        final IFn rf;
+
+        Step(IFn rf) {
+            this.rf = rf;
+        }
+
+        @Override
+        public Object invoke() {
+            return rf.invoke();
+        }
+
+        @Override
+        public Object invoke(Object acc) {
+            return rf.invoke(acc);
+        }
+    }
+
+    /**
+     * @param f function of one argument
+     * @return the transducer (map f)
+     */
+    public static IFn mapping(final IFn f) {
+        return new AFn() {
+            @Override
+            public Object invoke(Object rf) {
+                return new Step((IFn) rf) {
+                    @Override
+                    public Object invoke(Object acc, Object x) {
+                        return rf.invoke(acc, f.invoke(x));
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @param pred function of one argument
+     * @return the transducer (filter pred)
+     */
+    public static IFn filtering(final IFn pred) {
+        return new AFn() {
+            @Override
+            public Object invoke(Object rf) {
+                return new Step((IFn) rf) {
+                    @Override
+                    public Object invoke(Object acc, Object x) {
+                        return RT.booleanCast(pred.invoke(x)) ? rf.invoke(acc, x) : acc;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @param f function of one argument returning a seq
+     * @return the transducer (mapcat f)
+     */
+    public static IFn mapcatting(final IFn f) {
+        return new AFn() {
+            @Override
+            public Object invoke(Object rf) {
+                return new Step((IFn) rf) {
+                    @Override
+                    public Object invoke(Object acc, Object x) {
+                        for (ISeq s = RT.seq(f.invoke(x)); s != null; s = s.next()) {
+                            acc = rf.invoke(acc, s.first());
+                            if (Reduced.isReduced(acc)) {
+                                return acc;
+                            }
+                        }
+                        return acc;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @param n number of items to pass on
+     * @return the transducer (take n), which ends the reduction once it has
+     *         passed on n items
+     */
+    public static IFn taking(final long n) {
+        return new AFn() {
+            @Override
+            public Object invoke(Object rf) {
+                return new Step((IFn) rf) {
+                    private long remaining = n;
+
+                    @Override
+                    public Object invoke(Object acc, Object x) {
+                        long before = remaining--;
+                        Object ret = (before > 0) ? rf.invoke(acc, x) : acc;
+                        if (remaining <= 0 && !Reduced.isReduced(ret)) {
+                            ret = new Reduced(ret);
+                        }
+                        return ret;
+                    }
+                };
+            }
+        };
+    }
+}
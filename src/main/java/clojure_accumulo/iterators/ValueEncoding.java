@@ -0,0 +1,163 @@
+package clojure_accumulo.iterators;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import clojure.lang.RT;
+import org.apache.accumulo.core.data.Value;
+
+/**
+ * How the iterators turn what a Clojure function returns into a Value, and
+ * how a client turns that Value back into Clojure data.
+ *
+ * EDN prints the result with the Clojure printer, which is what the iterators
+ * have always done.  BINARY is a compact tagged format for numbers, strings,
+ * keywords and collections (see BinaryValueCodec).  RAW_LONG writes a number
+ * as eight big-endian bytes, the same layout as LongCombiner's FIXEDLEN type,
+ * and RAW_UTF8 writes (str result) as UTF-8.
+ *
+ * Functions that return a Value bypass the encoding entirely, and a Sketch
+ * is always written as its own bytes.
+ */
+public enum ValueEncoding {
+    EDN("edn") {
+        @Override
+        public byte[] encode(Object obj) {
+            StringWriter writer = ednWriter.get();
+            writer.getBuffer().setLength(0);
+
+            try {
+                RT.print(obj, writer);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            return BinaryValueCodec.utf8(writer.toString());
+        }
+
+        @Override
+        public Object decode(byte[] bytes, int offset, int length) {
+            return RT.readString(BinaryValueCodec.utf8(bytes, offset, length));
+        }
+    },
+
+    BINARY("binary") {
+        @Override
+        public byte[] encode(Object obj) {
+            return BinaryValueCodec.encode(obj);
+        }
+
+        @Override
+        public Object decode(byte[] bytes, int offset, int length) {
+            return BinaryValueCodec.decode(bytes, offset, length);
+        }
+    },
+
+    RAW_LONG("raw-long") {
+        @Override
+        public byte[] encode(Object obj) {
+            long l = RT.longCast(obj);
+            byte[] bytes = new byte[8];
+            for (int i = 7; i >= 0; i--) {
+                bytes[i] = (byte) l;
+                l >>>= 8;
+            }
+            return bytes;
+        }
+
+        @Override
+        public Object decode(byte[] bytes, int offset, int length) {
+            if (length != 8) {
+                throw new IllegalArgumentException("raw-long values must be 8 bytes, not " + length);
+            }
+
+            long l = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                l = (l << 8) | (bytes[i] & 0xff);
+            }
+            return l;
+        }
+    },
+
+    RAW_UTF8("raw-utf8") {
+        @Override
+        public byte[] encode(Object obj) {
+            return BinaryValueCodec.utf8(obj == null ? "" : obj.toString());
+        }
+
+        @Override
+        public Object decode(byte[] bytes, int offset, int length) {
+            return BinaryValueCodec.utf8(bytes, offset, length);
+        }
+    };
+
+    private static final ThreadLocal<StringWriter> ednWriter = new ThreadLocal<StringWriter>() {
+        @Override
+        protected StringWriter initialValue() {
+            return new StringWriter();
+        }
+    };
+
+    private final String optionValue;
+
+    ValueEncoding(String optionValue) {
+        this.optionValue = optionValue;
+    }
+
+    /**
+     * @return the name used for this encoding in iterator options
+     */
+    public String getOptionValue() {
+        return optionValue;
+    }
+
+    /**
+     * Look an encoding up by the name used in iterator options.
+     *
+     * @param optionValue edn, binary, raw-long or raw-utf8
+     * @return the matching encoding
+     * @throws IllegalArgumentException if there is no such encoding
+     */
+    public static ValueEncoding forOptionValue(String optionValue) {
+        for (ValueEncoding encoding : values()) {
+            if (encoding.optionValue.equals(optionValue)) {
+                return encoding;
+            }
+        }
+
+        throw new IllegalArgumentException("unknown encoding " + optionValue);
+    }
+
+    public abstract byte[] encode(Object obj);
+
+    public abstract Object decode(byte[] bytes, int offset, int length);
+
+    /**
+     * Return an object as a Value, passing Values through untouched and
+     * writing a Sketch as its own bytes.
+     *
+     * @param obj object to encode
+     * @return object as a Value
+     */
+    public Value toValue(Object obj) {
+        if (obj instanceof Value) {
+            return (Value) obj;
+        } else if (obj instanceof Sketch) {
+            return ((Sketch) obj).toValue();
+        }
+
+        return new Value(encode(obj), false);
+    }
+
+    /**
+     * Decode a Value produced with this encoding, for example on the client
+     * side of a scan.
+     *
+     * @param value an encoded Value
+     * @return the Clojure data it holds
+     */
+    public Object decode(Value value) {
+        byte[] bytes = value.get();
+        return decode(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,49 @@
+package clojure_accumulo.iterators;
+
+import org.apache.accumulo.core.data.Key;
+
+/**
+ * Lets an iterator give up its thread part way through a range.
+ *
+ * An iterator that has done enough work without finding anything to return
+ * calls yield with the last key it examined and reports that it has no top.
+ * Whatever is driving it checks hasYielded, and if it is set, takes the
+ * position and later seeks the iterator again with a range that starts just
+ * after it, exclusive.
+ *
+ * Accumulo 1.4's tablet server does not do this itself; the class mirrors
+ * the YieldCallback of later Accumulo releases so that iterators can be
+ * driven this way by other code now, and ported easily later.
+ */
+public final class YieldCallback {
+    private Key position;
+
+    /**
+     * Called by the iterator when it stops early.
+     *
+     * @param key the last key examined, from which the scan resumes
+     */
+    public void yield(Key key) {
+        if (position != null) {
+            throw new IllegalStateException("already yielded at " + position);
+        }
+        position = key;
+    }
+
+    /**
+     * @return true if the iterator stopped early rather than reaching the end
+     * of the range
+     */
+    public boolean hasYielded() {
+        return position != null;
+    }
+
+    /**
+     * @return the key to resume after, clearing it for the next yield
+     */
+    public Key getPositionAndReset() {
+        Key key = position;
+        position = null;
+        return key;
+    }
+}
@@ -0,0 +1,121 @@
+package clojure_accumulo.iterators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClojureBatchFilterTest {
+    private static final String TABLE_NAME = "foo";
+    private Connector conn;
+
+    @Before
+    public void setUp() throws Exception {
+        Instance instance = new MockInstance();
+        conn = instance.getConnector("user", "password");
+
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.create(TABLE_NAME);
+
+        BatchWriter writer = conn.createBatchWriter("foo", 1024, 0, 1);
+
+        Mutation m = new Mutation("a");
+        m.put("", "b", "");
+        m.put("", "c", "");
+        writer.addMutation(m);
+
+        m = new Mutation("d");
+        m.put("", "e", "");
+        writer.addMutation(m);
+
+        m = new Mutation("f");
+        m.put("", "g", "");
+        writer.addMutation(m);
+
+        writer.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.delete(TABLE_NAME);
+    }
+
+    private List<String> scan(IteratorSetting is) throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.addScanIterator(is);
+
+        List<String> rows = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            rows.add(e.getKey().getRow() + ":" + e.getKey().getColumnQualifier());
+        }
+        return rows;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidationRequiresPredicate() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.addScanIterator(new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureBatchFilter"));
+        s.iterator();
+    }
+
+    @Test
+    public void testFilterIndexesAcrossBatches() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureBatchFilter");
+        is.addOption("pred",
+                "(fn [kvs] " +
+                  "(keep-indexed (fn [i [k v]] (when-not (= (str (.getRow k)) \"d\") i)) kvs))");
+
+        for (String batchSize : new String[] {"1", "2", "3", "100"}) {
+            is.addOption("batchSize", batchSize);
+
+            List<String> expected = new ArrayList<String>();
+            expected.add("a:b");
+            expected.add("a:c");
+            expected.add("f:g");
+
+            Assert.assertEquals(expected, scan(is));
+        }
+    }
+
+    @Test
+    public void testFilterBitSet() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureBatchFilter");
+        is.addOption("pred",
+                "(fn [kvs] " +
+                  "(let [bits (java.util.BitSet.)] " +
+                    "(dotimes [i (count kvs)] " +
+                      "(when (= (str (.getColumnQualifier (key (nth kvs i)))) \"e\") (.set bits i))) " +
+                    "bits))");
+        is.addOption("batchSize", "2");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("d:e");
+
+        Assert.assertEquals(expected, scan(is));
+    }
+
+    @Test
+    public void testFilterRejectsEverything() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureBatchFilter");
+        is.addOption("pred", "(fn [kvs] nil)");
+        is.addOption("batchSize", "2");
+
+        Assert.assertTrue(scan(is).isEmpty());
+    }
+}
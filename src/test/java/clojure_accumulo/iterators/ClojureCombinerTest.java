@@ -1,10 +1,14 @@
 package clojure_accumulo.iterators;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.RT;
 import junit.framework.Assert;
 import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.Connector;
@@ -155,4 +159,357 @@ public class ClojureCombinerTest {
         Assert.assertEquals(1, list.size());
         Assert.assertEquals("1", list.get(0));
     }
+
+    @Test
+    public void testCombineManyRawLong() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(new Range("a"));
+
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("f", "(fn [x _] (inc x))");
+        is.addOption("val", "0");
+        is.addOption("columns", "1");
+        ClojureIteratorUtils.setEncoding(is, ValueEncoding.RAW_LONG);
+        s.addScanIterator(is);
+
+        List<Object> list = new ArrayList<Object>();
+        for (Map.Entry<Key, Value> e : s) {
+            Assert.assertEquals(8, e.getValue().getSize());
+            list.add(ValueEncoding.RAW_LONG.decode(e.getValue()));
+        }
+
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(3L, list.get(0));
+    }
+
+    private Object combineNumbers(String numeric, NumberType type, String f, byte[]... values) throws Exception {
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+        Mutation m = new Mutation("n");
+        for (int i = 0; i < values.length; i++) {
+            m.put("2", "x", i + 1L, new Value(values[i]));
+        }
+        writer.addMutation(m);
+        writer.close();
+
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(new Range("n"));
+
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("f", f);
+        is.addOption("numeric", numeric);
+        is.addOption("type", type.name());
+        is.addOption("columns", "2");
+        s.addScanIterator(is);
+
+        List<Object> list = new ArrayList<Object>();
+        for (Map.Entry<Key, Value> e : s) {
+            byte[] b = e.getValue().get();
+            if (numeric.equals("long")) {
+                list.add(type.decodeLong(b, 0, b.length));
+            } else {
+                list.add(type.decodeDouble(b, 0, b.length));
+            }
+        }
+
+        Assert.assertEquals(1, list.size());
+        return list.get(0);
+    }
+
+    @Test
+    public void testCombineNumericLong() throws Exception {
+        for (NumberType type : NumberType.values()) {
+            Object sum = combineNumbers("long", type, "(fn ^long [^long acc ^long x] (+ acc x))",
+                    type.encodeLong(1000), type.encodeLong(-3), type.encodeLong(20));
+            Assert.assertEquals(1017L, sum);
+            tearDown();
+            setUp();
+        }
+    }
+
+    @Test
+    public void testCombineNumericDouble() throws Exception {
+        Object max = combineNumbers("double", NumberType.FIXEDLEN, "(fn ^double [^double acc ^double x] (max acc x))",
+                NumberType.FIXEDLEN.encodeDouble(1.5), NumberType.FIXEDLEN.encodeDouble(-3), NumberType.FIXEDLEN.encodeDouble(2.25));
+        Assert.assertEquals(2.25, max);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCombineNumericRequiresPrimitiveFn() throws Exception {
+        combineNumbers("long", NumberType.FIXEDLEN, "(fn [acc x] (+ acc x))",
+                NumberType.FIXEDLEN.encodeLong(1), NumberType.FIXEDLEN.encodeLong(2));
+    }
+
+    private List<String> scanValues(IteratorSetting is, Range range) throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(range);
+        s.addScanIterator(is);
+
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            list.add(e.getKey().getRow() + "=" + new String(e.getValue().get()));
+        }
+        return list;
+    }
+
+    @Test
+    public void testCombineStreaming() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("init", "(fn [] [])");
+        is.addOption("step", "(fn [acc kv] (conj acc (String. (.get (val kv)))))");
+        is.addOption("complete", "(fn [acc] (count acc))");
+        is.addOption("columns", "1");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a=3");
+        expected.add("d=1");
+        Assert.assertEquals(expected, scanValues(is, new Range()));
+    }
+
+    @Test
+    public void testCombineStreamingDefaultInit() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("step", "(fn ([] 0) ([acc kv] (inc acc)))");
+        is.addOption("columns", "1");
+
+        Assert.assertEquals(Collections.singletonList("a=3"), scanValues(is, new Range("a")));
+
+        is.addOption("val", "10");
+        Assert.assertEquals(Collections.singletonList("a=13"), scanValues(is, new Range("a")));
+    }
+
+    @Test
+    public void testCombineStreamingReduced() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("step",
+                "(let [steps (intern 'user 'combiner-steps (atom 0))]" +
+                "(fn [acc kv]" +
+                  "(swap! @steps inc)" +
+                  "(clojure_accumulo.iterators.Reduced. (String. (.get (val kv))))))");
+        is.addOption("init", "(fn [] nil)");
+        is.addOption("columns", "1");
+
+        // Only the newest version of each key is read, and skipping the rest
+        // of a's versions does not lose d.
+        List<String> expected = new ArrayList<String>();
+        expected.add("a=\"a-b3\"");
+        expected.add("d=\"d-e\"");
+        Assert.assertEquals(expected, scanValues(is, new Range()));
+        Assert.assertEquals(2L, ((IDeref) RT.var("user", "combiner-steps").deref()).deref());
+
+        Assert.assertEquals(Collections.singletonList("a=\"a-b3\""), scanValues(is, new Range("a")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCombineStreamingRejectsF() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("f", "(fn [x _] x)");
+        is.addOption("step", "(fn [x _] x)");
+        is.addOption("columns", "1");
+        scanValues(is, new Range());
+    }
+
+    private Sketch combineSketch(IteratorSetting is, Value... values) throws Exception {
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+        Mutation m = new Mutation("s");
+        for (int i = 0; i < values.length; i++) {
+            m.put("3", "x", i + 1L, values[i]);
+        }
+        writer.addMutation(m);
+        writer.close();
+
+        is.addOption("columns", "3");
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(new Range("s"));
+        s.addScanIterator(is);
+
+        List<Sketch> list = new ArrayList<Sketch>();
+        for (Map.Entry<Key, Value> e : s) {
+            list.add(Sketch.fromValue(e.getValue()));
+        }
+
+        Assert.assertEquals(1, list.size());
+        return list.get(0);
+    }
+
+    @Test
+    public void testCombineSketchHyperLogLog() throws Exception {
+        // An earlier sketch of v0 to v59 merges with values v0 to v49.
+        HyperLogLog earlier = new HyperLogLog();
+        List<Value> values = new ArrayList<Value>();
+        for (int i = 0; i < 200; i++) {
+            values.add(new Value(("v" + (i % 50)).getBytes()));
+            earlier.add(("v" + (i % 60)).getBytes());
+        }
+        values.add(earlier.toValue());
+
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("sketch", "hll");
+        HyperLogLog hll = (HyperLogLog) combineSketch(is, values.toArray(new Value[values.size()]));
+        Assert.assertTrue(Math.abs(hll.cardinality() - 60) <= 1);
+    }
+
+    @Test
+    public void testCombineSketchTDigest() throws Exception {
+        List<Value> values = new ArrayList<Value>();
+        for (int i = 1; i <= 100; i++) {
+            values.add(new Value(Integer.toString(i).getBytes()));
+        }
+
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("sketch", "tdigest");
+        is.addOption("type", "STRING");
+        TDigest digest = (TDigest) combineSketch(is, values.toArray(new Value[values.size()]));
+        Assert.assertEquals(100, digest.count());
+        Assert.assertEquals(50.5, digest.quantile(0.5), 1.0);
+    }
+
+    @Test
+    public void testCombineSketchAddsValuesThatOnlyLookLikeSketches() throws Exception {
+        // The old three byte header, and a full header whose body is junk.
+        byte[] prefixed = new byte[] {(byte) 0xc5, 'S', 'K', 'H', 'x'};
+        byte[] junk = new byte[] {(byte) 0xc5, 'S', 'K', 'C', 1, 0, 0, 0, 2, 127, 127};
+
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("sketch", "hll");
+        HyperLogLog hll = (HyperLogLog) combineSketch(is, new Value(prefixed), new Value(junk), new Value("v".getBytes()));
+        Assert.assertEquals(3, hll.cardinality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCombineSketchRejectsF() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("sketch", "hll");
+        is.addOption("f", "(fn [a b] a)");
+        combineSketch(is, new Value("x".getBytes()));
+    }
+
+    private List<String> combineSafe(IteratorSetting is, String... values) throws Exception {
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+        Mutation m = new Mutation("t");
+        for (int i = 0; i < values.length; i++) {
+            m.put("4", "x", i + 1L, values[i]);
+        }
+        writer.addMutation(m);
+        writer.close();
+
+        is.addOption("safe", "true");
+        is.addOption("columns", "4");
+        return scanValues(is, new Range("t"));
+    }
+
+    @Test
+    public void testCombineSafe() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("f", "(fn [a b] (merge-with + a b))");
+        is.addOption("sample", "[{:x 1} {:x 2 :y 1} {:y 5}]");
+
+        // The third value is what an earlier compaction of {:x 1} and
+        // {:y 2} would have written.
+        Assert.assertEquals(Collections.singletonList("t={:x 3, :y 3}"),
+                combineSafe(is, "{:x 2}", "{:y 1}", "{:x 1, :y 2}"));
+    }
+
+    @Test
+    public void testCombineSafePartials() throws Exception {
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+        Mutation m = new Mutation("t");
+        m.put("4", "x", 1L, "1");
+        m.put("4", "x", 2L, "2");
+        m.put("4", "x", 3L, "3");
+        writer.addMutation(m);
+        m = new Mutation("u");
+        m.put("4", "x", 1L, "10");
+        writer.addMutation(m);
+        writer.close();
+
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("f", "+");
+        is.addOption("safe", "true");
+        is.addOption("partial", "true");
+        is.addOption("columns", "4");
+
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(new Range("t", "u"));
+        s.addScanIterator(is);
+
+        List<Object> partials = new ArrayList<Object>();
+        for (Map.Entry<Key, Value> e : s) {
+            partials.add(ValueEncoding.BINARY.decode(e.getValue()));
+        }
+
+        List<Object> expected = new ArrayList<Object>();
+        expected.add(6L);
+        expected.add(10L);
+        Assert.assertEquals(expected, partials);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCombineSafeRejectsNonAssociativeF() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("f", "-");
+        is.addOption("sample", "[1 2 3]");
+        combineSafe(is, "1", "2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCombineSafeRejectsVal() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("f", "+");
+        is.addOption("val", "0");
+        combineSafe(is, "1", "2");
+    }
+
+    @Test
+    public void testCombineBudgetFails() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("f", "(fn [acc kv] (Thread/sleep 50) acc)");
+        is.addOption("maxInvokeMillis", "20");
+        is.addOption("all", "true");
+        s.addScanIterator(is);
+
+        try {
+            for (Map.Entry<Key, Value> e : s) {
+                e.getKey();
+            }
+            Assert.fail("expected the scan to fail");
+        } catch (RuntimeException e) {
+            Throwable t = e;
+            while (t.getCause() != null && !(t instanceof IllegalStateException)) {
+                t = t.getCause();
+            }
+            Assert.assertTrue(t.getMessage(), t.getMessage().contains("maxInvokeMillis"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCombineBudgetRejectsDrop() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        IteratorSetting is = new IteratorSetting(10, "combiner", "clojure_accumulo.iterators.ClojureCombiner");
+        is.addOption("f", "(fn [acc kv] acc)");
+        is.addOption("maxInvokeMillis", "20");
+        is.addOption("budgetPolicy", "drop");
+        is.addOption("all", "true");
+        s.addScanIterator(is);
+        s.iterator();
+    }
+
+    @Test
+    public void testCheckRecombination() throws Exception {
+        IFn plus = (IFn) ClojureIteratorUtils.eval("+");
+        List<Object> samples = new ArrayList<Object>();
+        samples.add(1L);
+        samples.add(2L);
+        samples.add(3L);
+        ClojureCombiner.checkRecombination(plus, ValueEncoding.BINARY, samples);
+
+        // Averaging is not associative.
+        IFn average = (IFn) ClojureIteratorUtils.eval("(fn [a b] (/ (+ a b) 2))");
+        try {
+            ClojureCombiner.checkRecombination(average, ValueEncoding.EDN, samples);
+            Assert.fail("expected averaging to be rejected");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("split after"));
+        }
+    }
 }
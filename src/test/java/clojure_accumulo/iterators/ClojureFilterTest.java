@@ -1,6 +1,14 @@
 package clojure_accumulo.iterators;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import junit.framework.Assert;
 import org.apache.accumulo.core.client.BatchWriter;
@@ -10,10 +18,16 @@ import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.Scanner;
 import org.apache.accumulo.core.client.admin.TableOperations;
 import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
 import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -72,4 +86,361 @@ public class ClojureFilterTest {
             Assert.assertEquals("a", e.getKey().getRow().toString());
         }
     }
+
+    @Test
+    public void testFilterView() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred",
+                "(import '[org.apache.accumulo.core.data ArrayByteSequence])" +
+                "(fn [e] " +
+                  "(= (:row e) (ArrayByteSequence. \"a\")))");
+        is.addOption("view", "true");
+        s.addScanIterator(is);
+
+        int count = 0;
+        for (Map.Entry<Key, Value> e : s) {
+            Assert.assertEquals("a", e.getKey().getRow().toString());
+            count++;
+        }
+        Assert.assertEquals(2, count);
+    }
+
+    @Test
+    public void testFilterRef() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred-ref", "clojure_accumulo.test-fns/row-a?");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:b");
+        expected.add("a:c");
+        Assert.assertEquals(expected, scanRows(is, new Range()));
+    }
+
+    private List<String> scanRows(IteratorSetting is, Range range) throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(range);
+        s.addScanIterator(is);
+
+        List<String> rows = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            rows.add(e.getKey().getRow() + ":" + e.getKey().getColumnQualifier());
+        }
+        return rows;
+    }
+
+    @Test
+    public void testFilterSkipRow() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred",
+                "(let [calls (intern 'user 'skip-row-calls (atom 0))]" +
+                "(fn [[k v]] " +
+                  "(swap! @calls inc)" +
+                  "(if (= (str (.getRow k)) \"d\") true :skip-row)))");
+
+        Assert.assertEquals(Collections.singletonList("d:e"), scanRows(is, new Range()));
+        // a:b is tested and skips a:c, then d:e is tested and accepted.
+        Assert.assertEquals(2L, ((clojure.lang.IDeref) clojure.lang.RT.var("user", "skip-row-calls").deref()).deref());
+    }
+
+    @Test
+    public void testFilterSkipToKey() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred",
+                "(import '[org.apache.accumulo.core.data Key])" +
+                "(fn [[^Key k v]] " +
+                  "(if (= (str (.getColumnQualifier k)) \"b\") (Key. \"a\" \"\" \"c\") true))");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:c");
+        expected.add("d:e");
+        Assert.assertEquals(expected, scanRows(is, new Range()));
+    }
+
+    @Test
+    public void testFilterSkipPastEndOfRange() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred", "(fn [[k v]] :skip-row)");
+
+        Assert.assertTrue(scanRows(is, new Range("a")).isEmpty());
+        Assert.assertTrue(scanRows(is, new Range()).isEmpty());
+    }
+
+    @Test
+    public void testFilterBackwardsHintRejects() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred",
+                "(import '[org.apache.accumulo.core.data Key])" +
+                "(fn [[^Key k v]] " +
+                  "(if (= (str (.getColumnQualifier k)) \"c\") (Key. \"a\") true))");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:b");
+        expected.add("d:e");
+        Assert.assertEquals(expected, scanRows(is, new Range()));
+    }
+
+    @Test
+    public void testAcceptTreatsHintsAsRejections() throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("pred",
+                "(import '[org.apache.accumulo.core.data Key])" +
+                "(fn [[^Key k v]] " +
+                  "(case (str (.getRow k)) \"a\" :skip-row \"b\" (Key. \"z\") \"c\" :skip-column true))");
+
+        ClojureFilter filter = new ClojureFilter();
+        filter.init(new SortedMapIterator(new TreeMap<Key, Value>()), options, null);
+
+        Value v = new Value(new byte[0]);
+        Assert.assertFalse(filter.accept(new Key("a"), v));
+        Assert.assertFalse(filter.accept(new Key("b"), v));
+        Assert.assertFalse(filter.accept(new Key("c"), v));
+        Assert.assertTrue(filter.accept(new Key("d"), v));
+    }
+
+    @Test
+    public void testFilterBudgetDrops() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred",
+                "(fn [[k v]] " +
+                  "(when (= (str (.getRow k)) \"a\") (Thread/sleep 50))" +
+                  "true)");
+        is.addOption("maxInvokeMillis", "20");
+        is.addOption("budgetPolicy", "drop");
+
+        Assert.assertEquals(Collections.singletonList("d:e"), scanRows(is, new Range()));
+    }
+
+    @Test
+    public void testFilterBudgetFails() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred", "(fn [[k v]] (Thread/sleep 50) true)");
+        is.addOption("maxInvokeMillis", "20");
+
+        try {
+            scanRows(is, new Range());
+            Assert.fail("expected the scan to fail");
+        } catch (RuntimeException e) {
+            Throwable t = e;
+            while (t.getCause() != null && !(t instanceof IllegalStateException)) {
+                t = t.getCause();
+            }
+            Assert.assertTrue(t.getMessage(), t.getMessage().contains("maxInvokeMillis"));
+        }
+    }
+
+    @Test
+    public void testFilterBatchBudgetFailsUnderDrop() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred", "(fn [[k v]] (Thread/sleep 30) true)");
+        is.addOption("maxBatchMillis", "40");
+        is.addOption("budgetPolicy", "drop");
+
+        // Stopping early would look like the end of the range, so the scan
+        // must fail rather than return a truncated result.
+        try {
+            scanRows(is, new Range());
+            Assert.fail("expected the scan to fail");
+        } catch (RuntimeException e) {
+            Throwable t = e;
+            while (t.getCause() != null && !(t instanceof IllegalStateException)) {
+                t = t.getCause();
+            }
+            Assert.assertTrue(t.getMessage(), t.getMessage().contains("maxBatchMillis"));
+        }
+    }
+
+    @Test
+    public void testFilterYields() throws Exception {
+        TreeMap<Key, Value> map = new TreeMap<Key, Value>();
+        for (int i = 0; i < 20; i++) {
+            map.put(new Key(String.format("r%02d", i)), new Value(new byte[0]));
+        }
+
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("pred", "(fn [[k v]] (.endsWith (str (.getRow k)) \"5\"))");
+        options.put("yieldAfter", "3");
+
+        ClojureFilter filter = new ClojureFilter();
+        filter.init(new SortedMapIterator(map), options, null);
+        YieldCallback callback = new YieldCallback();
+        filter.enableYielding(callback);
+
+        // Resume after each yield the way a tablet server would.
+        List<String> rows = new ArrayList<String>();
+        int yields = 0;
+        Range range = new Range();
+        while (range != null) {
+            filter.seek(range, Collections.<ByteSequence>emptyList(), false);
+            for (; filter.hasTop(); filter.next()) {
+                rows.add(filter.getTopKey().getRow().toString());
+            }
+
+            range = null;
+            if (callback.hasYielded()) {
+                yields++;
+                range = new Range(callback.getPositionAndReset(), false, null, true);
+            }
+        }
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("r05");
+        expected.add("r15");
+        Assert.assertEquals(expected, rows);
+        Assert.assertTrue(yields > 0);
+    }
+
+    private static TreeMap<Key, Value> wideRow() {
+        TreeMap<Key, Value> map = new TreeMap<Key, Value>();
+        for (String family : new String[] {"data", "meta"}) {
+            for (String qualifier : new String[] {"x1", "x2", "y1"}) {
+                map.put(new Key("r", family, qualifier), new Value(new byte[0]));
+            }
+        }
+        return map;
+    }
+
+    private static List<String> columns(ClojureFilter filter) throws Exception {
+        List<String> columns = new ArrayList<String>();
+        for (; filter.hasTop(); filter.next()) {
+            columns.add(filter.getTopKey().getColumnFamily() + ":" + filter.getTopKey().getColumnQualifier());
+        }
+        return columns;
+    }
+
+    @Test
+    public void testFilterPassesOtherColumns() throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("pred",
+                "(let [calls (intern 'user 'selected-calls (atom 0))]" +
+                "(fn [[k v]] (swap! @calls inc) false))");
+        options.put("families", "data");
+        options.put("qualifierPrefixes", "x");
+
+        ClojureFilter filter = new ClojureFilter();
+        filter.init(new SortedMapIterator(wideRow()), options, null);
+        filter.seek(new Range(), Collections.<ByteSequence>emptyList(), false);
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("data:y1");
+        expected.add("meta:x1");
+        expected.add("meta:x2");
+        expected.add("meta:y1");
+        Assert.assertEquals(expected, columns(filter));
+        Assert.assertEquals(2L, ((clojure.lang.IDeref) clojure.lang.RT.var("user", "selected-calls").deref()).deref());
+    }
+
+    @Test
+    public void testFilterDropsOtherColumns() throws Exception {
+        final List<Collection<ByteSequence>> seeks = new ArrayList<Collection<ByteSequence>>();
+        WrappingIterator source = new WrappingIterator() {
+            @Override
+            public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+                Assert.assertTrue(inclusive);
+                seeks.add(columnFamilies);
+                // SortedMapIterator cannot select families itself.
+                super.seek(range, Collections.<ByteSequence>emptyList(), false);
+            }
+        };
+        source.init(new SortedMapIterator(wideRow()), null, null);
+
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("pred", "(fn [[k v]] true)");
+        options.put("families", "data");
+        options.put("qualifierPrefixes", "x");
+        options.put("others", "drop");
+
+        ClojureFilter filter = new ClojureFilter();
+        filter.init(source, options, null);
+        filter.seek(new Range(), Collections.<ByteSequence>emptyList(), false);
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("data:x1");
+        expected.add("data:x2");
+        Assert.assertEquals(expected, columns(filter));
+        Assert.assertEquals(Collections.singleton(new ArrayByteSequence("data")), seeks.get(0));
+
+        // Asking only for a family that is dropped reads nothing.
+        filter.seek(new Range(), Collections.<ByteSequence>singleton(new ArrayByteSequence("meta")), true);
+        Assert.assertFalse(filter.hasTop());
+        Assert.assertEquals(1, seeks.size());
+    }
+
+    private static class CountingIterator extends WrappingIterator {
+        int nexts;
+
+        @Override
+        public void next() throws IOException {
+            nexts++;
+            super.next();
+        }
+    }
+
+    private static List<String> filterRows(IteratorSetting is, CountingIterator source) throws Exception {
+        TreeMap<Key, Value> map = new TreeMap<Key, Value>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(new Key(String.format("r%03d", i)), new Value(new byte[0]));
+        }
+        source.init(new SortedMapIterator(map), null, null);
+
+        ClojureFilter filter = new ClojureFilter();
+        filter.init(source, is.getOptions(), null);
+        filter.seek(new Range(), Collections.<ByteSequence>emptyList(), false);
+
+        List<String> rows = new ArrayList<String>();
+        for (; filter.hasTop(); filter.next()) {
+            rows.add(filter.getTopKey().getRow().toString());
+        }
+        return rows;
+    }
+
+    @Test
+    public void testFilterRows() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        List<Object> rows = new ArrayList<Object>();
+        rows.add("r999");
+        rows.add(new Text("r500"));
+        rows.add("r100");
+        rows.add("r501");
+        rows.add("r100");
+        rows.add("zzz");
+        ClojureFilter.setRows(is, rows);
+
+        CountingIterator source = new CountingIterator();
+        List<String> expected = new ArrayList<String>();
+        expected.add("r100");
+        expected.add("r500");
+        expected.add("r501");
+        expected.add("r999");
+        Assert.assertEquals(expected, filterRows(is, source));
+        Assert.assertTrue("read " + source.nexts + " entries", source.nexts < 10);
+    }
+
+    @Test
+    public void testFilterRowPrefixesWithPred() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred", "(fn [[k v]] (.endsWith (str (.getRow k)) \"0\"))");
+        ClojureFilter.setRowPrefixes(is, Arrays.asList("r10", "r2", "r20", "r95"));
+
+        CountingIterator source = new CountingIterator();
+        List<String> rows = filterRows(is, source);
+        Assert.assertEquals(12, rows.size());
+        Assert.assertEquals("r100", rows.get(0));
+        Assert.assertEquals("r200", rows.get(1));
+        Assert.assertEquals("r950", rows.get(11));
+        Assert.assertTrue("read " + source.nexts + " entries", source.nexts < 130);
+    }
+
+    @Test
+    public void testFilterSetup() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("setup", "(fn [] #\"[bd]\")");
+        is.addOption("pred", "(fn [[k v] pattern] (boolean (re-find pattern (str (.getRow k) (.getColumnQualifier k)))))");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:b");
+        expected.add("d:e");
+        Assert.assertEquals(expected, scanRows(is, new Range()));
+    }
 }
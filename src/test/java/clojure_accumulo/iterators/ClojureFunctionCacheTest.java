@@ -0,0 +1,127 @@
+package clojure_accumulo.iterators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class ClojureFunctionCacheTest {
+
+    @Test
+    public void testRepeatedGetReturnsSameFunction() {
+        ClojureFunctionCache cache = new ClojureFunctionCache(8);
+
+        IFn fn1 = (IFn) cache.get("(fn [x] (inc x))");
+        IFn fn2 = (IFn) cache.get("(fn [x] (inc x))");
+
+        Assert.assertSame(fn1, fn2);
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.size());
+        Assert.assertTrue(cache.getCompileNanos() > 0);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ClojureFunctionCache cache = new ClojureFunctionCache(2);
+
+        Object a = cache.get("(fn [] :a)");
+        cache.get("(fn [] :b)");
+        // Touch a so that b becomes the eldest entry.
+        cache.get("(fn [] :a)");
+        cache.get("(fn [] :c)");
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertSame(a, cache.get("(fn [] :a)"));
+
+        long misses = cache.getMisses();
+        cache.get("(fn [] :b)");
+        Assert.assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompileErrorsAreNotCached() {
+        ClojureFunctionCache cache = new ClojureFunctionCache(2);
+
+        try {
+            cache.get("(fn [x] (undefined-symbol x))");
+        } finally {
+            Assert.assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void testHashIsStable() {
+        Assert.assertEquals(ClojureFunctionCache.hash("(fn [x] x)"), ClojureFunctionCache.hash("(fn [x] x)"));
+        Assert.assertFalse(ClojureFunctionCache.hash("(fn [x] x)").equals(ClojureFunctionCache.hash("(fn [y] y)")));
+    }
+
+    @Test
+    public void testConcurrentMissesCompileOnce() throws Exception {
+        final ClojureFunctionCache cache = new ClojureFunctionCache(8);
+        final String source = "(do (Thread/sleep 200) (fn [x] (dec x)))";
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(new Callable<Object>() {
+                    public Object call() {
+                        return cache.get(source);
+                    }
+                }));
+            }
+
+            Object first = results.get(0).get();
+            for (Future<Object> result : results) {
+                Assert.assertSame(first, result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(7, cache.getHits());
+    }
+
+    @Test
+    public void testCompileTimeout() throws Exception {
+        ClojureFunctionCache cache = new ClojureFunctionCache(8, new ClojureEvaluator(1, 50));
+        String source = "(do (Thread/sleep 500) (fn [] :slow))";
+
+        try {
+            cache.get(source);
+            Assert.fail("expected a timeout");
+        } catch (IllegalStateException e) {
+            // The compile carries on, and a later get picks up its result.
+        }
+
+        Thread.sleep(1000);
+        IFn fn = (IFn) cache.get(source);
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals("slow", ((Keyword) fn.invoke()).getName());
+    }
+
+    @Test
+    public void testCompileErrorIsRetried() {
+        ClojureFunctionCache cache = new ClojureFunctionCache(2);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("(fn [x] (undefined-symbol x))");
+                Assert.fail("expected a compile error");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals(2, cache.getMisses());
+    }
+}
@@ -0,0 +1,153 @@
+package clojure_accumulo.iterators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClojureGroupReducerTest {
+    private static final String TABLE_NAME = "foo";
+    private static final String SUM = "(fn [acc [k v]] (+ acc (Long/parseLong (String. (.get v)))))";
+    private Connector conn;
+
+    @Before
+    public void setUp() throws Exception {
+        Instance instance = new MockInstance();
+        conn = instance.getConnector("user", "password");
+
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.create(TABLE_NAME);
+
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+
+        Mutation m = new Mutation("a");
+        m.put("x", "q1", "1");
+        m.put("x", "q2", "2");
+        m.put("y", "q1", "3");
+        m.put("y", "r1", "4");
+        writer.addMutation(m);
+
+        m = new Mutation("b");
+        m.put("x", "q1", "5");
+        writer.addMutation(m);
+
+        writer.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.delete(TABLE_NAME);
+    }
+
+    private List<String> scan(IteratorSetting is, Range range) throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(range);
+        s.addScanIterator(is);
+
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            Key k = e.getKey();
+            list.add(k.getRow() + ":" + k.getColumnFamily() + ":" + k.getColumnQualifier() + "=" + new String(e.getValue().get()));
+        }
+        return list;
+    }
+
+    private static IteratorSetting sum() {
+        IteratorSetting is = new IteratorSetting(10, "group", "clojure_accumulo.iterators.ClojureGroupReducer");
+        is.addOption("f", SUM);
+        is.addOption("val", "0");
+        return is;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidationRequiresFn() throws Exception {
+        scan(new IteratorSetting(10, "group", "clojure_accumulo.iterators.ClojureGroupReducer"), new Range());
+    }
+
+    @Test
+    public void testReduceRows() throws Exception {
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:x:q1=10");
+        expected.add("b:x:q1=5");
+        Assert.assertEquals(expected, scan(sum(), new Range()));
+    }
+
+    @Test
+    public void testReduceFamilies() throws Exception {
+        IteratorSetting is = sum();
+        is.addOption("group", "family");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:x:q1=3");
+        expected.add("a:y:q1=7");
+        expected.add("b:x:q1=5");
+        Assert.assertEquals(expected, scan(is, new Range()));
+    }
+
+    @Test
+    public void testReduceGroupFn() throws Exception {
+        IteratorSetting is = sum();
+        is.addOption("groupFn", "(fn [k] (first (str (.getColumnQualifier k))))");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:x:q1=6");
+        expected.add("a:y:r1=4");
+        expected.add("b:x:q1=5");
+        Assert.assertEquals(expected, scan(is, new Range()));
+    }
+
+    @Test
+    public void testSeekMidGroup() throws Exception {
+        // A range that starts after a group's first key leaves that group
+        // out, so resuming after an emitted key does not repeat it.
+        Assert.assertEquals(1, scan(sum(), new Range(new Key("a", "x", "q2"), true, null, true)).size());
+
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.addScanIterator(sum());
+        Key first = s.iterator().next().getKey();
+        Assert.assertEquals(1, scan(sum(), new Range(first, false, null, true)).size());
+
+        // A range that ends part way through a group still reduces all of it.
+        Assert.assertEquals("a:x:q1=10", scan(sum(), new Range(new Key("a"), true, new Key("a", "x", "q2"), true)).get(0));
+
+        IteratorSetting is = sum();
+        is.addOption("group", "family");
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:y:q1=7");
+        expected.add("b:x:q1=5");
+        Assert.assertEquals(expected, scan(is, new Range(new Key("a", "x", "q2"), true, null, true)));
+    }
+
+    @Test
+    public void testReduceEarly() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "group", "clojure_accumulo.iterators.ClojureGroupReducer");
+        is.addOption("f",
+                "(import '[clojure_accumulo.iterators Reduced])" +
+                "(fn [acc [k v]] (Reduced. (String. (.get v))))");
+        is.addOption("val", ":none");
+        is.addOption("complete", "(fn [s] (str s \"!\"))");
+        is.addOption("encoding", "raw-utf8");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:x:q1=1!");
+        expected.add("b:x:q1=5!");
+        Assert.assertEquals(expected, scan(is, new Range()));
+    }
+}
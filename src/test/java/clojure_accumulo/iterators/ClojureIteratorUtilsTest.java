@@ -1,6 +1,7 @@
 package clojure_accumulo.iterators;
 
 import java.util.HashMap;
+import java.util.Map;
 
 import clojure.lang.IFn;
 import clojure.lang.Namespace;
@@ -48,4 +49,54 @@ public class ClojureIteratorUtilsTest {
         HashMap m = (HashMap) obj.invoke();
         Assert.assertEquals(new HashMap(), m);
     }
+
+    @Test
+    public void testGetFnRef() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("f-ref", "clojure.string/upper-case");
+
+        Assert.assertTrue(ClojureIteratorUtils.hasFn(options, "f"));
+        IFn fn = ClojureIteratorUtils.getFn(options, "f", "test");
+        Assert.assertEquals("A", fn.invoke("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetFnRejectsSourceAndRef() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("f", "identity");
+        options.put("f-ref", "clojure.core/identity");
+
+        ClojureIteratorUtils.getFn(options, "f", "test");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testResolveRequiresNamespace() {
+        ClojureIteratorUtils.resolve("identity");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testResolveMissingVar() {
+        ClojureIteratorUtils.resolve("clojure.core/no-such-fn");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testResolveMissingNamespace() {
+        ClojureIteratorUtils.resolve("no.such.ns/f");
+    }
+
+    @Test
+    public void testLoadRestoresContextClassLoader() {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        ClassLoader marker = new ClassLoader(previous) {
+        };
+
+        thread.setContextClassLoader(marker);
+        try {
+            ClojureIteratorUtils.load("(fn [x] x)");
+            Assert.assertSame(marker, thread.getContextClassLoader());
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
 }
@@ -0,0 +1,158 @@
+package clojure_accumulo.iterators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClojureMapcatTest {
+    private static final String TABLE_NAME = "foo";
+    private static final String SPLIT =
+            "(import '[org.apache.accumulo.core.data Key])" +
+            "(fn [[^Key k v]] " +
+              "(for [part (.split (String. (.get v)) \",\")] " +
+                "[(Key. (str (.getRow k)) \"p\" part) (str (.getColumnQualifier k))]))";
+    private Connector conn;
+
+    @Before
+    public void setUp() throws Exception {
+        Instance instance = new MockInstance();
+        conn = instance.getConnector("user", "password");
+
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.create(TABLE_NAME);
+
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+
+        Mutation m = new Mutation("a");
+        m.put("", "b", "z,x");
+        m.put("", "c", "y");
+        writer.addMutation(m);
+
+        m = new Mutation("d");
+        m.put("", "e", "w,v");
+        writer.addMutation(m);
+
+        writer.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.delete(TABLE_NAME);
+    }
+
+    private List<String> scan(IteratorSetting is, Range range) throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(range);
+        s.addScanIterator(is);
+
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            list.add(e.getKey().getRow() + ":" + e.getKey().getColumnQualifier() + "=" + new String(e.getValue().get()));
+        }
+        return list;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidationRequiresFn() throws Exception {
+        scan(new IteratorSetting(10, "mapcat", "clojure_accumulo.iterators.ClojureMapcat"), new Range());
+    }
+
+    @Test
+    public void testMapcatSortsResults() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapcat", "clojure_accumulo.iterators.ClojureMapcat");
+        is.addOption("f", SPLIT);
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:x=\"b\"");
+        expected.add("a:y=\"c\"");
+        expected.add("a:z=\"b\"");
+        expected.add("d:v=\"e\"");
+        expected.add("d:w=\"e\"");
+        Assert.assertEquals(expected, scan(is, new Range()));
+    }
+
+    @Test
+    public void testMapcatDropsEntries() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapcat", "clojure_accumulo.iterators.ClojureMapcat");
+        is.addOption("f",
+                "(fn [[k v]] " +
+                  "(when (= (str (.getRow k)) \"d\") [v]))");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("d:e=w,v");
+        Assert.assertEquals(expected, scan(is, new Range()));
+    }
+
+    @Test
+    public void testMapcatSeekWithinRow() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapcat", "clojure_accumulo.iterators.ClojureMapcat");
+        is.addOption("f", SPLIT);
+
+        // a:x comes from a:b, which sorts before the start of the range.
+        Range range = new Range(new Key("a", "p", "x"), true, new Key("a", "p", "y"), true);
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:x=\"b\"");
+        expected.add("a:y=\"c\"");
+        Assert.assertEquals(expected, scan(is, range));
+    }
+
+    @Test
+    public void testMapcatSmallBuffer() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapcat", "clojure_accumulo.iterators.ClojureMapcat");
+        is.addOption("f",
+                "(import '[org.apache.accumulo.core.data Key])" +
+                "(fn [[^Key k v]] " +
+                  "(let [q (str (.getColumnQualifier k))]" +
+                    "[[(Key. (str (.getRow k)) \"\" (str q 1)) 1]" +
+                     "[(Key. (str (.getRow k)) \"\" (str q 0)) 0]]))");
+        is.addOption("bufferSize", "1");
+
+        // Each entry's results are out of order, but sort after everything
+        // emitted before them.
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:b0=0");
+        expected.add("a:b1=1");
+        expected.add("a:c0=0");
+        expected.add("a:c1=1");
+        expected.add("d:e0=0");
+        expected.add("d:e1=1");
+        Assert.assertEquals(expected, scan(is, new Range()));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMapcatOutOfOrderPastBuffer() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapcat", "clojure_accumulo.iterators.ClojureMapcat");
+        is.addOption("f",
+                "(import '[org.apache.accumulo.core.data Key])" +
+                "(fn [[^Key k v]] [[(Key. (str (.getRow k)) \"\" (if (= (str (.getColumnQualifier k)) \"b\") \"m\" \"a\")) 1]])");
+        is.addOption("bufferSize", "1");
+        scan(is, new Range());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMapcatResultsStayInRow() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapcat", "clojure_accumulo.iterators.ClojureMapcat");
+        is.addOption("f",
+                "(import '[org.apache.accumulo.core.data Key])" +
+                "(fn [[k v]] [[(Key. \"q\") 1]])");
+        scan(is, new Range());
+    }
+}
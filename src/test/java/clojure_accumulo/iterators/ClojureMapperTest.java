@@ -1,8 +1,13 @@
 package clojure_accumulo.iterators;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import junit.framework.Assert;
 import org.apache.accumulo.core.client.BatchWriter;
@@ -12,9 +17,14 @@ import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.Scanner;
 import org.apache.accumulo.core.client.admin.TableOperations;
 import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
 import org.apache.accumulo.core.security.Authorizations;
 import org.junit.After;
 import org.junit.Before;
@@ -110,4 +120,339 @@ public class ClojureMapperTest {
 
         Assert.assertEquals(expected, actual);
     }
+
+    @Test
+    public void testMapValuesView() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f",
+                "(fn [e] " +
+                   "(.length (:value e)))");
+        is.addOption("view", "true");
+        s.addScanIterator(is);
+
+        Set<String> actual = new HashSet<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            actual.add(new String(e.getValue().get()));
+        }
+
+        Assert.assertEquals(Collections.singleton("3"), actual);
+    }
+
+    @Test
+    public void testMapBudgetDrops() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f",
+                "(fn [[k v]] " +
+                  "(if (= (str (.getRow k)) \"a\") (apply str (repeat 100 \"x\")) \"y\"))");
+        is.addOption("maxValueBytes", "10");
+        is.addOption("budgetPolicy", "drop");
+        s.addScanIterator(is);
+
+        Set<String> actual = new HashSet<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            actual.add(e.getKey().getRow().toString());
+        }
+
+        Assert.assertEquals(Collections.singleton("d"), actual);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMapBudgetFails() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f", "(fn [[k v]] (apply str (repeat 100 \"x\")))");
+        is.addOption("maxValueBytes", "10");
+        s.addScanIterator(is);
+
+        for (Map.Entry<Key, Value> e : s) {
+            Assert.fail("expected the scan to fail, not return " + e);
+        }
+    }
+
+    private static final String MOVE_A_TO_Z =
+            "(import '[org.apache.accumulo.core.data Key])" +
+            "(fn [[^Key k v]] " +
+              "[(if (= (str (.getRow k)) \"a\") (Key. \"z\" \"\" (str (.getColumnQualifier k))) k) v])";
+
+    private List<String> scanKeys(IteratorSetting is) throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.addScanIterator(is);
+
+        List<String> keys = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            keys.add(e.getKey().getRow() + ":" + e.getKey().getColumnQualifier());
+        }
+        return keys;
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMapOutOfOrderFails() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f", MOVE_A_TO_Z);
+        is.addOption("order", "check");
+        scanKeys(is);
+    }
+
+    @Test
+    public void testMapSortWindow() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f", MOVE_A_TO_Z);
+        is.addOption("order", "sort");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("d:e");
+        expected.add("z:b");
+        expected.add("z:c");
+        Assert.assertEquals(expected, scanKeys(is));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMapSortWindowTooSmall() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f", MOVE_A_TO_Z);
+        is.addOption("order", "sort");
+        is.addOption("windowSize", "2");
+        scanKeys(is);
+    }
+
+    @Test
+    public void testMapPreservingSkipsCheck() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f", MOVE_A_TO_Z);
+        is.addOption("order", "preserving");
+        Assert.assertEquals(3, scanKeys(is).size());
+    }
+
+    @Test
+    public void testMapDoesNotCheckOrderByDefault() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f", MOVE_A_TO_Z);
+        Assert.assertEquals(3, scanKeys(is).size());
+    }
+
+    @Test
+    public void testMapValueFnKeepsKeys() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("valueFn", "(fn [[k v]] (.toUpperCase (String. (.get v))))");
+        is.addOption("encoding", "raw-utf8");
+        s.addScanIterator(is);
+
+        List<String> entries = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            entries.add(e.getKey().getRow() + ":" + e.getKey().getColumnQualifier() + "=" + e.getValue());
+        }
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:b=A-B");
+        expected.add("a:c=A-C");
+        expected.add("d:e=D-E");
+        Assert.assertEquals(expected, entries);
+    }
+
+    @Test
+    public void testMapKeyFnKeepsValues() throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("keyFn",
+                "(import '[org.apache.accumulo.core.data Key])" +
+                "(fn [[^Key k v]] (Key. (.getRow k) (.getColumnFamily k) (.getColumnQualifier k) (org.apache.hadoop.io.Text. \"vis\")))");
+        s.addScanIterator(is);
+
+        List<String> entries = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            entries.add(e.getKey().getColumnVisibility() + "=" + e.getValue());
+        }
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("vis=a-b");
+        expected.add("vis=a-c");
+        expected.add("vis=d-e");
+        Assert.assertEquals(expected, entries);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMapFnWithValueFnFails() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f", "(fn [[k v]] v)");
+        is.addOption("valueFn", "(fn [[k v]] v)");
+        scanKeys(is);
+    }
+
+    private SortedKeyValueIterator<Key, Value> lazyMapper() throws Exception {
+        TreeMap<Key, Value> map = new TreeMap<Key, Value>();
+        for (int i = 0; i < 5; i++) {
+            map.put(new Key("r" + i), new Value(("v" + i).getBytes()));
+        }
+
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("valueFn",
+                "(let [calls (intern 'user 'value-fn-calls (atom 0))]" +
+                "(fn [[k v]] (swap! @calls inc) (.toUpperCase (String. (.get v)))))");
+        options.put("encoding", "raw-utf8");
+
+        ClojureMapper mapper = new ClojureMapper();
+        mapper.init(new SortedMapIterator(map), options, null);
+        return mapper;
+    }
+
+    private static long valueFnCalls() {
+        return (Long) ((clojure.lang.IDeref) clojure.lang.RT.var("user", "value-fn-calls").deref()).deref();
+    }
+
+    @Test
+    public void testMapValueFnIsLazy() throws Exception {
+        SortedKeyValueIterator<Key, Value> mapper = lazyMapper();
+        mapper.seek(new Range(), Collections.<ByteSequence>emptyList(), false);
+
+        int keys = 0;
+        for (; mapper.hasTop(); mapper.next()) {
+            mapper.getTopKey();
+            keys++;
+            if (keys == 3) {
+                Assert.assertEquals("V2", mapper.getTopValue().toString());
+                Assert.assertEquals("V2", mapper.getTopValue().toString());
+            }
+        }
+
+        Assert.assertEquals(5, keys);
+        Assert.assertEquals(1L, valueFnCalls());
+    }
+
+    @Test
+    public void testMapDeepCopy() throws Exception {
+        SortedKeyValueIterator<Key, Value> mapper = lazyMapper();
+        SortedKeyValueIterator<Key, Value> copy = mapper.deepCopy(null);
+
+        mapper.seek(new Range(), Collections.<ByteSequence>emptyList(), false);
+        copy.seek(new Range(new Key("r3"), null), Collections.<ByteSequence>emptyList(), false);
+
+        Assert.assertEquals("V0", mapper.getTopValue().toString());
+        Assert.assertEquals("r3", copy.getTopKey().getRow().toString());
+        Assert.assertEquals("V3", copy.getTopValue().toString());
+        mapper.next();
+        Assert.assertEquals("V1", mapper.getTopValue().toString());
+    }
+
+    @Test
+    public void testMapSelectedColumns() throws Exception {
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+        Mutation m = new Mutation("a");
+        m.put("meta", "b", "a-meta");
+        writer.addMutation(m);
+        writer.close();
+
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("valueFn", "(fn [[k v]] (.toUpperCase (String. (.get v))))");
+        is.addOption("encoding", "raw-utf8");
+        is.addOption("families", "");
+        is.addOption("qualifierPrefixes", "b,e");
+        s.addScanIterator(is);
+
+        List<String> values = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            values.add(e.getValue().toString());
+        }
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("A-B");
+        expected.add("a-c");
+        expected.add("a-meta");
+        expected.add("D-E");
+        Assert.assertEquals(expected, values);
+
+        is.addOption("others", "drop");
+        s.clearScanIterators();
+        s.addScanIterator(is);
+
+        values.clear();
+        for (Map.Entry<Key, Value> e : s) {
+            values.add(e.getValue().toString());
+        }
+
+        expected.clear();
+        expected.add("A-B");
+        expected.add("D-E");
+        Assert.assertEquals(expected, values);
+    }
+
+    @Test
+    public void testMapSetupAndRowFn() throws Exception {
+        String f = "(fn [[k v] names row-size] (str (get names (str (.getColumnQualifier k))) \"/\" row-size)) ; testMapSetupAndRowFn";
+        FunctionMetrics metrics = FunctionMetrics.forFunction(ClojureFunctionCache.hash(f));
+        metrics.reset();
+
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f", f);
+        is.addOption("setup", "(fn [] {\"b\" \"bee\" \"c\" \"sea\" \"e\" \"ee\"})");
+        is.addOption("rowFn",
+                "(let [calls (intern 'user 'row-fn-calls (atom 0))]" +
+                "(fn [k names] (swap! @calls inc) (count (str (.getRow k) names))))");
+        is.addOption("encoding", "raw-utf8");
+        s.addScanIterator(is);
+
+        List<String> values = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            values.add(e.getValue().toString());
+        }
+
+        String names = "{\"b\" \"bee\", \"c\" \"sea\", \"e\" \"ee\"}";
+        List<String> expected = new ArrayList<String>();
+        expected.add("bee/" + (1 + names.length()));
+        expected.add("sea/" + (1 + names.length()));
+        expected.add("ee/" + (1 + names.length()));
+        Assert.assertEquals(expected, values);
+        Assert.assertEquals(2L, ((clojure.lang.IDeref) clojure.lang.RT.var("user", "row-fn-calls").deref()).deref());
+        Assert.assertEquals(1, metrics.getMemoHits());
+        Assert.assertEquals(2, metrics.getMemoMisses());
+    }
+
+    @Test
+    public void testMapSortWindowCopiesReusedValues() throws Exception {
+        TreeMap<Key, Value> map = new TreeMap<Key, Value>();
+        for (int i = 0; i < 4; i++) {
+            map.put(new Key("a" + i), new Value(("v" + i).getBytes()));
+        }
+
+        // Hand out one Value object for every entry, as RFile does.
+        WrappingIterator source = new WrappingIterator() {
+            private final Value reused = new Value();
+
+            @Override
+            public Value getTopValue() {
+                reused.set(super.getTopValue().get());
+                return reused;
+            }
+        };
+        source.init(new SortedMapIterator(map), null, null);
+
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("keyFn",
+                "(import '[org.apache.accumulo.core.data Key])" +
+                "(fn [[^Key k v]] (Key. (str \"x\" (subs (str (.getRow k)) 1))))");
+        options.put("order", "sort");
+
+        ClojureMapper mapper = new ClojureMapper();
+        mapper.init(source, options, null);
+        mapper.seek(new Range(), Collections.<ByteSequence>emptyList(), false);
+
+        List<String> entries = new ArrayList<String>();
+        for (; mapper.hasTop(); mapper.next()) {
+            entries.add(mapper.getTopKey().getRow() + "=" + mapper.getTopValue());
+        }
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("x0=v0");
+        expected.add("x1=v1");
+        expected.add("x2=v2");
+        expected.add("x3=v3");
+        Assert.assertEquals(expected, entries);
+    }
 }
@@ -0,0 +1,206 @@
+package clojure_accumulo.iterators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import clojure.lang.IFn;
+import junit.framework.Assert;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorUtil;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClojurePipelineTest {
+    private static final String TABLE_NAME = "foo";
+    private static final String TRANSDUCERS = "(import '[clojure_accumulo.iterators Transducers])";
+    private Connector conn;
+
+    @Before
+    public void setUp() throws Exception {
+        Instance instance = new MockInstance();
+        conn = instance.getConnector("user", "password");
+
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.create(TABLE_NAME);
+        tableOperations.removeIterator(TABLE_NAME, "vers", EnumSet.allOf(IteratorUtil.IteratorScope.class));
+
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+
+        Mutation m = new Mutation("a");
+        m.put("count", "b", 1L, "1");
+        m.put("count", "b", 2L, "20");
+        m.put("count", "b", 3L, "300");
+        m.put("name", "b", 1L, "x");
+        writer.addMutation(m);
+
+        m = new Mutation("d");
+        m.put("count", "e", 1L, "4");
+        writer.addMutation(m);
+
+        writer.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.delete(TABLE_NAME);
+    }
+
+    private List<String> scan(IteratorSetting is) throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(new Range());
+        s.addScanIterator(is);
+
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<Key, Value> e : s) {
+            list.add(e.getKey().getRow() + ":" + e.getKey().getColumnFamily() + "=" + new String(e.getValue().get()));
+        }
+        return list;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidationRequiresXf() throws Exception {
+        scan(new IteratorSetting(10, "pipeline", "clojure_accumulo.iterators.ClojurePipeline"));
+    }
+
+    @Test
+    public void testFilterMap() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "pipeline", "clojure_accumulo.iterators.ClojurePipeline");
+        is.addOption("xf", TRANSDUCERS +
+                "(comp (Transducers/filtering (fn [[k v]] (= (str (.getColumnFamily k)) \"count\")))" +
+                      "(Transducers/mapping (fn [[k v]] (* 2 (Long/parseLong (String. (.get v)))))))");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:count=600");
+        expected.add("a:count=40");
+        expected.add("a:count=2");
+        expected.add("d:count=8");
+        Assert.assertEquals(expected, scan(is));
+    }
+
+    @Test
+    public void testFilterMapReduce() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "pipeline", "clojure_accumulo.iterators.ClojurePipeline");
+        is.addOption("xf", TRANSDUCERS +
+                "(comp (Transducers/filtering (fn [[k v]] (= (str (.getColumnFamily k)) \"count\")))" +
+                      "(Transducers/mapping (fn [[k v]] (Long/parseLong (String. (.get v))))))");
+        is.addOption("rf", "+");
+        ClojureIteratorUtils.setEncoding(is, ValueEncoding.RAW_UTF8);
+
+        // a:name is filtered out entirely, so nothing is emitted for it.
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:count=321");
+        expected.add("d:count=4");
+        Assert.assertEquals(expected, scan(is));
+    }
+
+    @Test
+    public void testReduceTakingPerKey() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "pipeline", "clojure_accumulo.iterators.ClojurePipeline");
+        is.addOption("xf", TRANSDUCERS +
+                "(comp (Transducers/taking 2) (Transducers/mapping (fn [[k v]] (String. (.get v)))))");
+        is.addOption("rf", "conj");
+        is.addOption("val", "[]");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:count=[\"300\" \"20\"]");
+        expected.add("a:name=[\"x\"]");
+        expected.add("d:count=[\"4\"]");
+        Assert.assertEquals(expected, scan(is));
+    }
+
+    @Test
+    public void testReduceCopiesKeysAndCompletes() throws Exception {
+        TreeMap<Key, Value> map = new TreeMap<Key, Value>();
+        for (long ts = 1; ts <= 3; ts++) {
+            map.put(new Key("a", "count", "b", ts), new Value(Long.toString(ts).getBytes()));
+        }
+
+        // Hand out one Key object for every entry, as RFile does.
+        WrappingIterator source = new WrappingIterator() {
+            private final Key reused = new Key();
+
+            @Override
+            public Key getTopKey() {
+                reused.set(super.getTopKey());
+                return reused;
+            }
+        };
+        source.init(new SortedMapIterator(map), null, null);
+
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("xf", TRANSDUCERS + "(Transducers/mapping (fn [[k v]] k))");
+        options.put("rf",
+                "(fn ([] [])" +
+                    "([acc] (vec (map #(.getTimestamp %) acc)))" +
+                    "([acc k] (conj acc k)))");
+
+        ClojurePipeline pipeline = new ClojurePipeline();
+        pipeline.init(source, options, null);
+        pipeline.seek(new Range(), Collections.<ByteSequence>emptyList(), false);
+
+        Assert.assertTrue(pipeline.hasTop());
+        Assert.assertEquals("[3 2 1]", pipeline.getTopValue().toString());
+        pipeline.next();
+        Assert.assertFalse(pipeline.hasTop());
+    }
+
+    @Test
+    public void testHasUnaryArity() throws Exception {
+        Assert.assertTrue(ClojurePipeline.hasUnaryArity((IFn) ClojureIteratorUtils.eval("+")));
+        Assert.assertTrue(ClojurePipeline.hasUnaryArity((IFn) ClojureIteratorUtils.eval("(fn ([acc] acc) ([acc x] x))")));
+        Assert.assertTrue(ClojurePipeline.hasUnaryArity((IFn) ClojureIteratorUtils.eval("(fn [& xs] xs)")));
+        Assert.assertFalse(ClojurePipeline.hasUnaryArity((IFn) ClojureIteratorUtils.eval("conj")));
+        Assert.assertFalse(ClojurePipeline.hasUnaryArity((IFn) ClojureIteratorUtils.eval("(fn [acc x] x)")));
+    }
+
+    @Test
+    public void testRewrittenKeysMustKeepOrder() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "pipeline", "clojure_accumulo.iterators.ClojurePipeline");
+        is.addOption("xf", TRANSDUCERS +
+                "(import '[org.apache.accumulo.core.data Key])" +
+                "(Transducers/mapping (fn [[^Key k v]] [(Key. (if (= (str (.getRow k)) \"a\") \"z\" \"b\")) v]))");
+
+        try {
+            scan(is);
+            Assert.fail("expected the scan to fail");
+        } catch (RuntimeException e) {
+            Throwable t = e;
+            while (t.getCause() != null && !(t instanceof IllegalStateException)) {
+                t = t.getCause();
+            }
+            Assert.assertTrue(t.getMessage(), t.getMessage().contains("sorts before"));
+        }
+    }
+
+    @Test
+    public void testTakingEndsScan() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "pipeline", "clojure_accumulo.iterators.ClojurePipeline");
+        is.addOption("xf", TRANSDUCERS + "(Transducers/taking 2)");
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("a:count=300");
+        expected.add("a:count=20");
+        Assert.assertEquals(expected, scan(is));
+    }
+}
@@ -0,0 +1,52 @@
+package clojure_accumulo.iterators;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class ClojurePreloaderTest {
+
+    @Test
+    public void testPreloadCompilesIntoCache() throws Exception {
+        String source = "(fn [[k v]] (= (str (.getRow k)) \"preloaded\"))";
+        File file = File.createTempFile("preload", ".clj");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(source.getBytes("UTF-8"));
+        out.close();
+
+        List<String> failed = ClojurePreloader.preload(file.getPath() + ", clojure.set/union");
+        Assert.assertEquals(Collections.<String>emptyList(), failed);
+
+        ClojureFunctionCache cache = ClojureFunctionCache.getInstance();
+        long misses = cache.getMisses();
+        ClojureIteratorUtils.eval(source);
+        Assert.assertEquals(misses, cache.getMisses());
+    }
+
+    @Test
+    public void testPreloadReportsFailures() {
+        List<String> failed = ClojurePreloader.preload("no.such.ns/f,/no/such/file.clj");
+
+        Assert.assertEquals(2, failed.size());
+    }
+
+    @Test
+    public void testAgentFindsPreloaderThroughAccumulo() throws Exception {
+        Assert.assertSame(ClojurePreloader.class, ClojurePreloaderAgent.preloaderClass());
+    }
+
+    @Test
+    public void testStart() throws Exception {
+        ClojurePreloader.start("");
+        Assert.assertFalse(ClojurePreloader.start(""));
+        Assert.assertTrue(ClojurePreloader.awaitReady(60, TimeUnit.SECONDS));
+        Assert.assertTrue(ClojurePreloader.isReady());
+        Assert.assertTrue(ClojurePreloader.getFailed().isEmpty());
+    }
+}
@@ -0,0 +1,126 @@
+package clojure_accumulo.iterators;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FunctionMetricsTest {
+    private static final String TABLE_NAME = "foo";
+    private Connector conn;
+
+    @Before
+    public void setUp() throws Exception {
+        Instance instance = new MockInstance();
+        conn = instance.getConnector("user", "password");
+
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.create(TABLE_NAME);
+
+        BatchWriter writer = conn.createBatchWriter("foo", 1024, 0, 1);
+
+        for (int i = 0; i < 100; i++) {
+            Mutation m = new Mutation(String.format("r%03d", i));
+            m.put("", "q", "v");
+            writer.addMutation(m);
+        }
+
+        writer.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.delete(TABLE_NAME);
+    }
+
+    @Test
+    public void testFilterMetrics() throws Exception {
+        String pred = "(fn [[k v]] (.startsWith (str (.getRow k)) \"r00\")) ; testFilterMetrics";
+        FunctionMetrics metrics = FunctionMetrics.forFunction(ClojureFunctionCache.hash(pred));
+        metrics.reset();
+
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        IteratorSetting is = new IteratorSetting(10, "filter", "clojure_accumulo.iterators.ClojureFilter");
+        is.addOption("pred", pred);
+        is.addOption("logMetrics", "true");
+        s.addScanIterator(is);
+
+        int count = 0;
+        for (Map.Entry<Key, Value> e : s) {
+            count++;
+        }
+
+        Assert.assertEquals(10, count);
+        Assert.assertTrue(metrics.getInits() >= 1);
+        Assert.assertEquals(100, metrics.getEntriesRead());
+        Assert.assertEquals(10, metrics.getEntriesEmitted());
+        Assert.assertEquals(100, metrics.getInvocations());
+        Assert.assertTrue(metrics.getSampledInvocations() > 0);
+        Assert.assertTrue(metrics.getSampledInvocations() < 100);
+
+        long histogramTotal = 0;
+        for (long bucket : metrics.getInvokeHistogram()) {
+            histogramTotal += bucket;
+        }
+        Assert.assertEquals(metrics.getSampledInvocations(), histogramTotal);
+    }
+
+    @Test
+    public void testMapperMetricsAreRegisteredWithJmx() throws Exception {
+        String f = "(fn [[k v]] 1) ; testMapperMetricsAreRegisteredWithJmx";
+        String hash = ClojureFunctionCache.hash(f);
+        FunctionMetrics.forFunction(hash).reset();
+
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        IteratorSetting is = new IteratorSetting(10, "mapper", "clojure_accumulo.iterators.ClojureMapper");
+        is.addOption("f", f);
+        s.addScanIterator(is);
+
+        for (Map.Entry<Key, Value> e : s) {
+            Assert.assertEquals("1", new String(e.getValue().get()));
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("clojure_accumulo.iterators:type=FunctionMetrics,fn=" + hash);
+        Assert.assertEquals(100L, server.getAttribute(name, "EntriesRead"));
+        Assert.assertEquals(100L, server.getAttribute(name, "EntriesEmitted"));
+        Assert.assertEquals(100L, server.getAttribute(name, "Encodings"));
+    }
+
+    @Test
+    public void testMetricsAreBounded() throws Exception {
+        String hash = ClojureFunctionCache.hash("; testMetricsAreBounded");
+        FunctionMetrics metrics = FunctionMetrics.forFunction(hash);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Assert.assertTrue(server.isRegistered(FunctionMetrics.objectName(hash)));
+
+        int maxSize = ClojureFunctionCache.getInstance().getMaxSize();
+        for (int i = 0; i < maxSize; i++) {
+            FunctionMetrics.forFunction(ClojureFunctionCache.hash("; testMetricsAreBounded " + i));
+        }
+
+        Assert.assertTrue(FunctionMetrics.getAll().size() <= maxSize);
+        Assert.assertFalse(FunctionMetrics.getAll().contains(metrics));
+        Assert.assertFalse(server.isRegistered(FunctionMetrics.objectName(hash)));
+        Assert.assertNotSame(metrics, FunctionMetrics.forFunction(hash));
+    }
+}
@@ -0,0 +1,58 @@
+package clojure_accumulo.iterators;
+
+import clojure.lang.IFn;
+import junit.framework.Assert;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Test;
+
+public class KeyValueViewTest {
+
+    @Test
+    public void testDestructuresLikeMapEntry() {
+        IFn fn = (IFn) ClojureIteratorUtils.eval(
+                "(fn [[k v]] [(str (.getRow k)) (String. (.get v))])");
+
+        KeyValueView view = new KeyValueView();
+        Object ret = fn.invoke(view.set(new Key("r", "f", "q"), new Value("v".getBytes())));
+
+        Assert.assertEquals(ClojureIteratorUtils.eval("[\"r\" \"v\"]"), ret);
+    }
+
+    @Test
+    public void testKeywordLookups() {
+        KeyValueView view = new KeyValueView();
+        Key k = new Key("r", "f", "q", "vis", 42L);
+        Value v = new Value("v".getBytes());
+        view.set(k, v);
+
+        IFn fn = (IFn) ClojureIteratorUtils.eval("(fn [e k] (k e))");
+        Assert.assertEquals(new ArrayByteSequence("r"), fn.invoke(view, ClojureIteratorUtils.eval(":row")));
+        Assert.assertEquals(new ArrayByteSequence("f"), fn.invoke(view, ClojureIteratorUtils.eval(":family")));
+        Assert.assertEquals(new ArrayByteSequence("q"), fn.invoke(view, ClojureIteratorUtils.eval(":qualifier")));
+        Assert.assertEquals(new ArrayByteSequence("vis"), fn.invoke(view, ClojureIteratorUtils.eval(":visibility")));
+        Assert.assertEquals(42L, fn.invoke(view, ClojureIteratorUtils.eval(":timestamp")));
+        Assert.assertEquals(new ArrayByteSequence("v"), fn.invoke(view, ClojureIteratorUtils.eval(":value")));
+        Assert.assertSame(k, fn.invoke(view, ClojureIteratorUtils.eval(":key")));
+        Assert.assertNull(fn.invoke(view, ClojureIteratorUtils.eval(":nothing")));
+    }
+
+    @Test
+    public void testValueSliceSharesBytes() {
+        KeyValueView view = new KeyValueView();
+        byte[] bytes = "v".getBytes();
+        view.set(new Key("r"), new Value(bytes, false));
+
+        ArrayByteSequence slice = (ArrayByteSequence) view.valAt(ClojureIteratorUtils.eval(":value"));
+        Assert.assertSame(bytes, slice.getBackingArray());
+
+        view.set(new Key("s"), new Value("w".getBytes()));
+        Assert.assertEquals(new ArrayByteSequence("w"), view.valAt(ClojureIteratorUtils.eval(":value")));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() {
+        new KeyValueView().set(new Key("r"), new Value()).setValue(new Value());
+    }
+}
@@ -0,0 +1,55 @@
+package clojure_accumulo.iterators;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import org.apache.accumulo.core.iterators.LongCombiner;
+import org.junit.Test;
+
+public class NumberTypeTest {
+    private static final long[] LONGS = {0, 1, -1, 127, -112, -113, 128, 255, 256, -256, 1L << 40,
+            Long.MAX_VALUE, Long.MIN_VALUE};
+
+    private static long roundTrip(NumberType type, long l) {
+        byte[] b = type.encodeLong(l);
+        return type.decodeLong(b, 0, b.length);
+    }
+
+    @Test
+    public void testMatchesLongCombinerEncoders() {
+        for (long l : LONGS) {
+            Assert.assertTrue(Arrays.equals(LongCombiner.VAR_LEN_ENCODER.encode(l), NumberType.VARLEN.encodeLong(l)));
+            Assert.assertTrue(Arrays.equals(LongCombiner.FIXED_LEN_ENCODER.encode(l), NumberType.FIXEDLEN.encodeLong(l)));
+            Assert.assertTrue(Arrays.equals(LongCombiner.STRING_ENCODER.encode(l), NumberType.STRING.encodeLong(l)));
+        }
+    }
+
+    @Test
+    public void testLongRoundTrip() {
+        for (NumberType type : NumberType.values()) {
+            for (long l : LONGS) {
+                Assert.assertEquals(l, roundTrip(type, l));
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeAtOffset() {
+        byte[] b = "xx-42yy".getBytes();
+        Assert.assertEquals(-42L, NumberType.STRING.decodeLong(b, 2, 3));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testStringOverflow() {
+        byte[] b = "9223372036854775808".getBytes();
+        NumberType.STRING.decodeLong(b, 0, b.length);
+    }
+
+    @Test
+    public void testDoubleRoundTrip() {
+        for (NumberType type : new NumberType[] {NumberType.FIXEDLEN, NumberType.STRING}) {
+            byte[] b = type.encodeDouble(-2.5);
+            Assert.assertEquals(-2.5, type.decodeDouble(b, 0, b.length));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package clojure_accumulo.iterators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorUtil;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PartialAggregatesTest {
+    private static final String TABLE_NAME = "foo";
+    private Connector conn;
+
+    @Before
+    public void setUp() throws Exception {
+        Instance instance = new MockInstance();
+        conn = instance.getConnector("user", "password");
+
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.create(TABLE_NAME);
+
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+        for (int i = 1; i <= 4; i++) {
+            Mutation m = new Mutation("r" + i);
+            m.put("", "a", Integer.toString(i));
+            m.put("", "b", Integer.toString(10 * i));
+            writer.addMutation(m);
+        }
+        writer.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TableOperations tableOperations = conn.tableOperations();
+        tableOperations.delete(TABLE_NAME);
+    }
+
+    @Test
+    public void testAggregateGroups() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "sum", ClojureGroupReducer.class);
+        is.addOption("f", "(fn [acc [k v]] (+ acc (Long/parseLong (String. (.get v)))))");
+        is.addOption("val", "0");
+        is.addOption("combine", "+");
+        is.addOption("complete", "(fn [n] (str \"total \" n))");
+
+        List<Range> ranges = new ArrayList<Range>();
+        ranges.add(new Range("r1", "r2"));
+        ranges.add(new Range("r3", "r4"));
+
+        Object total = PartialAggregates.aggregate(conn, TABLE_NAME, new Authorizations(), ranges, 2, is);
+        Assert.assertEquals("total 110", total);
+    }
+
+    @Test
+    public void testAggregateEmpty() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "sum", ClojureGroupReducer.class);
+        is.addOption("f", "(fn [acc [k v]] (inc acc))");
+        is.addOption("val", "0");
+        is.addOption("combine", "+");
+
+        Object total = PartialAggregates.aggregate(conn, TABLE_NAME, new Authorizations(),
+                Collections.singletonList(new Range("x")), 2, is);
+        Assert.assertNull(total);
+    }
+
+    @Test
+    public void testCombinerPartials() throws Exception {
+        IteratorSetting is = new IteratorSetting(10, "combiner", ClojureCombiner.class);
+        is.addOption("step", "(fn [acc [k v]] (conj acc (String. (.get v))))");
+        is.addOption("val", "[]");
+        is.addOption("complete", "count");
+        is.addOption("partial", "true");
+        is.addOption("all", "true");
+
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.setRange(new Range("r2"));
+        s.addScanIterator(is);
+
+        List<Object> partials = new ArrayList<Object>();
+        for (Map.Entry<Key, Value> e : s) {
+            partials.add(ValueEncoding.BINARY.decode(e.getValue()));
+        }
+
+        List<Object> expected = new ArrayList<Object>();
+        expected.add(Collections.singletonList("2"));
+        expected.add(Collections.singletonList("20"));
+        Assert.assertEquals(expected, partials);
+    }
+
+    private List<Object> scanValues(IteratorSetting is, ValueEncoding encoding) throws Exception {
+        Scanner s = conn.createScanner(TABLE_NAME, new Authorizations());
+        s.addScanIterator(is);
+
+        List<Object> values = new ArrayList<Object>();
+        for (Map.Entry<Key, Value> e : s) {
+            values.add(encoding.decode(e.getValue()));
+        }
+        return values;
+    }
+
+    @Test
+    public void testCombinerPartialsOfMixedVersions() throws Exception {
+        conn.tableOperations().removeIterator(TABLE_NAME, "vers", EnumSet.allOf(IteratorUtil.IteratorScope.class));
+        BatchWriter writer = conn.createBatchWriter(TABLE_NAME, 1024, 0, 1);
+        Mutation m = new Mutation("r2");
+        m.put("", "a", 1L, new Value("5".getBytes()));
+        m.put("", "a", 2L, new Value("7".getBytes()));
+        writer.addMutation(m);
+        writer.close();
+
+        String f = "(fn ([] 0) ([acc [k v]] (+ acc (Long/parseLong (String. (.get v))))))";
+
+        // One tablet, no partials: val makes f see every version.
+        IteratorSetting whole = new IteratorSetting(10, "combiner", ClojureCombiner.class);
+        whole.addOption("f", f);
+        whole.addOption("val", "0");
+        whole.addOption("all", "true");
+        List<Object> expected = scanValues(whole, ValueEncoding.EDN);
+
+        // Partials start from (f), whether a key has one version or three.
+        IteratorSetting is = new IteratorSetting(10, "combiner", ClojureCombiner.class);
+        is.addOption("f", f);
+        is.addOption("partial", "true");
+        is.addOption("all", "true");
+        is.addOption("combine", "+");
+        Assert.assertEquals(expected, scanValues(is, ValueEncoding.BINARY));
+
+        List<Range> ranges = new ArrayList<Range>();
+        ranges.add(new Range("r1", "r2"));
+        ranges.add(new Range("r3", "r4"));
+        Assert.assertEquals(122L, PartialAggregates.aggregate(conn, TABLE_NAME, new Authorizations(), ranges, 2, is));
+    }
+}
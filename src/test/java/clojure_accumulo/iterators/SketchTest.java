@@ -0,0 +1,131 @@
+package clojure_accumulo.iterators;
+
+import java.util.Map;
+
+import clojure.lang.RT;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class SketchTest {
+    private static Sketch roundTrip(Sketch sketch) {
+        byte[] bytes = sketch.toBytes();
+        return Sketch.fromBytes(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testHyperLogLog() {
+        HyperLogLog a = new HyperLogLog();
+        HyperLogLog b = new HyperLogLog();
+        for (int i = 0; i < 20000; i++) {
+            a.add("item" + i);
+            b.add("item" + (i + 10000));
+        }
+
+        Assert.assertTrue(Math.abs(a.cardinality() - 20000) < 20000 * 0.05);
+
+        HyperLogLog merged = (HyperLogLog) roundTrip(a).merge(b);
+        Assert.assertTrue(Math.abs(merged.cardinality() - 30000) < 30000 * 0.05);
+    }
+
+    @Test
+    public void testHeaderChecksKindVersionAndLength() {
+        byte[] bytes = new HyperLogLog(4).toBytes();
+        Assert.assertTrue(Sketch.isSketch(bytes, 0, bytes.length));
+        Assert.assertFalse(Sketch.isSketch(bytes, 0, bytes.length - 1));
+
+        byte[] kind = bytes.clone();
+        kind[3] = 'X';
+        Assert.assertFalse(Sketch.isSketch(kind, 0, kind.length));
+
+        byte[] version = bytes.clone();
+        version[4] = 2;
+        Assert.assertFalse(Sketch.isSketch(version, 0, version.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCorruptBodyIsNotASketch() {
+        // A CountMinSketch claiming far more counts than it has bytes for.
+        byte[] bytes = new byte[] {(byte) 0xc5, 'S', 'K', 'C', 1, 0, 0, 0, 3, (byte) 0xff, 0x7f, 1};
+        Sketch.fromBytes(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testHyperLogLogSmall() {
+        HyperLogLog hll = new HyperLogLog();
+        for (int i = 0; i < 100; i++) {
+            hll.add((long) (i % 10));
+        }
+        Assert.assertEquals(10, hll.cardinality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHyperLogLogMergeRequiresSamePrecision() {
+        new HyperLogLog(10).merge(new HyperLogLog(12));
+    }
+
+    @Test
+    public void testTDigest() {
+        TDigest a = new TDigest();
+        TDigest b = new TDigest();
+        for (int i = 0; i < 10000; i++) {
+            a.add(i, 1);
+            b.add(i + 10000, 1);
+        }
+
+        Assert.assertEquals(5000, a.quantile(0.5), 100);
+        Assert.assertEquals(9900, a.quantile(0.99), 20);
+        Assert.assertEquals(0.0, a.quantile(0));
+        Assert.assertEquals(9999.0, a.quantile(1));
+
+        TDigest merged = (TDigest) roundTrip(a).merge(roundTrip(b));
+        Assert.assertEquals(20000, merged.count());
+        Assert.assertEquals(10000, merged.quantile(0.5), 200);
+        Assert.assertEquals(19999.0, merged.max());
+    }
+
+    @Test
+    public void testTDigestEmpty() {
+        Assert.assertTrue(Double.isNaN(((TDigest) roundTrip(new TDigest())).quantile(0.5)));
+    }
+
+    @Test
+    public void testCountMinSketch() {
+        CountMinSketch cms = new CountMinSketch(256, 4);
+        for (int i = 0; i < 1000; i++) {
+            cms.add("item" + (i % 100));
+        }
+        cms.add("hot", 500);
+
+        CountMinSketch copy = (CountMinSketch) roundTrip(cms);
+        Assert.assertEquals(1500, copy.total());
+        Assert.assertTrue(copy.estimate("hot") >= 500 && copy.estimate("hot") < 520);
+        Assert.assertTrue(copy.estimate("item7") >= 10);
+
+        copy.merge(cms);
+        Assert.assertTrue(copy.estimate("hot") >= 1000);
+    }
+
+    @Test
+    public void testBinaryEncoding() {
+        HyperLogLog hll = new HyperLogLog();
+        hll.add("a");
+        hll.add("b");
+
+        // On its own, a sketch is written as its own bytes.
+        byte[] bytes = ValueEncoding.BINARY.toValue(hll).get();
+        Assert.assertTrue(Sketch.isSketch(bytes, 0, bytes.length));
+        Assert.assertEquals(2, ((HyperLogLog) ValueEncoding.BINARY.decode(bytes, 0, bytes.length)).cardinality());
+
+        // Inside a collection, it is tagged.
+        Object decoded = ValueEncoding.BINARY.decode(ValueEncoding.BINARY.toValue(RT.map("users", hll, "n", 2L)));
+        Assert.assertEquals(2, ((HyperLogLog) ((Map<?, ?>) decoded).get("users")).cardinality());
+    }
+
+    @Test
+    public void testClojureAccumulator() {
+        Object f = ClojureIteratorUtils.eval(
+                "(import '[clojure_accumulo.iterators HyperLogLog])" +
+                "(fn [xs] (.cardinality (reduce (fn [^HyperLogLog acc x] (doto acc (.add x))) (HyperLogLog.) xs)))");
+        Assert.assertEquals(3L, ((clojure.lang.IFn) f).invoke(RT.vector("a", "b", "c", "a")));
+    }
+}
@@ -0,0 +1,81 @@
+package clojure_accumulo.iterators;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Test;
+
+public class ValueEncodingTest {
+
+    private static Object roundTrip(ValueEncoding encoding, Object obj) {
+        return encoding.decode(encoding.toValue(obj));
+    }
+
+    @Test
+    public void testEdnPrintsClojure() {
+        Object obj = ClojureIteratorUtils.eval("{:a [1 2.5 \"x\"]}");
+        Value v = ValueEncoding.EDN.toValue(obj);
+
+        Assert.assertEquals("{:a [1 2.5 \"x\"]}", new String(v.get()));
+        Assert.assertEquals(obj, ValueEncoding.EDN.decode(v));
+    }
+
+    @Test
+    public void testBinaryRoundTrip() {
+        Object obj = ClojureIteratorUtils.eval(
+                "{:n -300 :d 2.5 :s \"h\u00e9llo\" :k :ns/kw :sym 'foo " +
+                " :v [1 [2 3] nil true false] :l '(1 2) :set #{1 2} " +
+                " :big 123456789012345678901234567890N :dec 1.5M :ratio 1/3}");
+
+        Assert.assertEquals(obj, roundTrip(ValueEncoding.BINARY, obj));
+    }
+
+    @Test
+    public void testBinaryIsCompact() {
+        Assert.assertEquals(2, ValueEncoding.BINARY.encode(42L).length);
+        Assert.assertEquals(6, ValueEncoding.BINARY.encode(ClojureIteratorUtils.eval("[1 -1]")).length);
+    }
+
+    @Test
+    public void testBinaryBytes() {
+        byte[] bytes = {1, 2, 3};
+        Assert.assertTrue(Arrays.equals(bytes, (byte[]) roundTrip(ValueEncoding.BINARY, bytes)));
+    }
+
+    @Test
+    public void testRawLong() {
+        Value v = ValueEncoding.RAW_LONG.toValue(258L);
+
+        Assert.assertTrue(Arrays.equals(new byte[] {0, 0, 0, 0, 0, 0, 1, 2}, v.get()));
+        Assert.assertEquals(258L, ValueEncoding.RAW_LONG.decode(v));
+        Assert.assertEquals(-7L, roundTrip(ValueEncoding.RAW_LONG, -7));
+    }
+
+    @Test
+    public void testRawUtf8() {
+        Assert.assertEquals("abc", new String(ValueEncoding.RAW_UTF8.toValue("abc").get()));
+        Assert.assertEquals("12", roundTrip(ValueEncoding.RAW_UTF8, 12L));
+    }
+
+    @Test
+    public void testValuesPassThrough() {
+        Value v = new Value("x".getBytes());
+
+        for (ValueEncoding encoding : ValueEncoding.values()) {
+            Assert.assertSame(v, encoding.toValue(v));
+        }
+    }
+
+    @Test
+    public void testForOptionValue() {
+        for (ValueEncoding encoding : ValueEncoding.values()) {
+            Assert.assertSame(encoding, ValueEncoding.forOptionValue(encoding.getOptionValue()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForOptionValueRejectsUnknown() {
+        ValueEncoding.forOptionValue("xml");
+    }
+}
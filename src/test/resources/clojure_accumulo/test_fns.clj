@@ -0,0 +1,4 @@
+(ns clojure_accumulo.test-fns)
+
+(defn row-a? [[k v]]
+  (= (str (.getRow k)) "a"))